@@ -0,0 +1,117 @@
+package statsemdistance;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hash table from raw byte slices (cells of a file) to int ids, looked up without creating any String.
+ * Used by CsvCorpusReader so that a tag is decoded, cleaned and singularized only the first time its bytes are met.
+ * @author mgarchery
+ */
+public class ByteSliceInterner {
+
+    private int[] slots;          // entry index + 1, 0 for empty slots
+    private byte[] pool = new byte[1 << 12];
+    private int poolSize = 0;
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] hashes = new int[256];
+    private int[] ids = new int[256];
+    private int entries = 0;
+
+    public ByteSliceInterner() {
+        slots = new int[1 << 10];
+    }
+
+    /**
+     * Hash of the bytes buffer[from] ... buffer[to - 1]
+     */
+    public static int hash(ByteBuffer buffer, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ buffer.get(i)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Looks a slice up
+     * @param buffer buffer containing the slice
+     * @param from first byte of the slice
+     * @param to end of the slice (exclusive)
+     * @param hash hash of the slice, as returned by hash(buffer, from, to)
+     * @return id stored for this slice, -1 if the slice is unknown
+     */
+    public int get(ByteBuffer buffer, int from, int to, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == hash && equals(entry, buffer, from, to)) {
+                return ids[entry];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stores the id of an unknown slice (the bytes are copied)
+     * @param buffer buffer containing the slice
+     * @param from first byte of the slice
+     * @param to end of the slice (exclusive)
+     * @param hash hash of the slice, as returned by hash(buffer, from, to)
+     * @param id id to store
+     */
+    public void put(ByteBuffer buffer, int from, int to, int hash, int id) {
+        int length = to - from;
+        if (poolSize + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+        }
+        for (int i = 0; i < length; i++) {
+            pool[poolSize + i] = buffer.get(from + i);
+        }
+
+        if (entries == ids.length) {
+            starts = Arrays.copyOf(starts, entries * 2);
+            lengths = Arrays.copyOf(lengths, entries * 2);
+            hashes = Arrays.copyOf(hashes, entries * 2);
+            ids = Arrays.copyOf(ids, entries * 2);
+        }
+        starts[entries] = poolSize;
+        lengths[entries] = length;
+        hashes[entries] = hash;
+        ids[entries] = id;
+        poolSize += length;
+        entries++;
+
+        if (entries * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int entry = 0; entry < entries; entry++) {
+                insert(entry);
+            }
+        } else {
+            insert(entries - 1);
+        }
+    }
+
+    private void insert(int entry) {
+        int mask = slots.length - 1;
+        int slot = hashes[entry] & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+    }
+
+    private boolean equals(int entry, ByteBuffer buffer, int from, int to) {
+        if (lengths[entry] != to - from) {
+            return false;
+        }
+        int start = starts[entry];
+        for (int i = from; i < to; i++) {
+            if (pool[start++] != buffer.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
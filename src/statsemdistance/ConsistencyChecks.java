@@ -0,0 +1,332 @@
+package statsemdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic checks that the optimized computations give the results of the straightforward ones they replace,
+ * on seeded random corpora (run it as main class, it exits with status 1 if any check fails).
+ * @author mgarchery
+ */
+public class ConsistencyChecks {
+
+    private static final long SEED = 20160307L;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        checkCooccurrences();
+        checkFusedDivergence();
+        checkDecomposedDivergence();
+        checkSparseDivergence();
+        checkSweep();
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parallel cooccurrence counts must be the sequential ones, and both must be the counts of every pair of tags over the images
+     */
+    private static void checkCooccurrences() {
+        for (int images : new int[] {0, 1, 500, 10000}) {
+            TagCorpus corpus = randomCorpus(new Random(SEED + images), images, 300, 12);
+            SparseCooccurrence sequential = CooccurrenceAccumulator.accumulate(corpus, false);
+            SparseCooccurrence parallel = CooccurrenceAccumulator.accumulate(corpus, true);
+
+            check("cooccurrences, " + images + " images: parallel = sequential",
+                    Arrays.equals(sequential.offsets(), parallel.offsets())
+                    && Arrays.equals(sequential.columns(), parallel.columns())
+                    && Arrays.equals(sequential.values(), parallel.values()));
+
+            Map<Long,Integer> pairs = new HashMap<>();
+            for (int image = 0; image < corpus.imageCount(); image++) {
+                int[] tags = corpus.tagsOf(image);
+                for (int a = 0; a < tags.length; a++) {
+                    for (int b = a + 1; b < tags.length; b++) {
+                        pairs.merge(((long) tags[a] << 32) | tags[b], 1, Integer::sum);
+                    }
+                }
+            }
+            boolean counted = sequential.nonZeros() == 2 * pairs.size();
+            for (Map.Entry<Long,Integer> pair : pairs.entrySet()) {
+                int i = (int) (pair.getKey() >>> 32), j = (int) (long) pair.getKey();
+                counted &= sequential.get(i, j) == pair.getValue() && sequential.get(j, i) == pair.getValue();
+            }
+            check("cooccurrences, " + images + " images: counts of all pairs", counted);
+        }
+    }
+
+    /**
+     * The fused Jensen-Shannon divergence (one loop, no average array) must be the one of the original code (average
+     * array, then two KL divergences) bit for bit with the scalar loop, and within rounding with the SIMD loop
+     */
+    private static void checkFusedDivergence() {
+        Random random = new Random(SEED);
+        boolean vectorized = Kernels.VECTORIZED;
+        for (int length : new int[] {1, 7, 63, 64, 65, 300}) {
+            boolean scalarExact = true;
+            boolean vectorClose = true;
+            for (int pair = 0; pair < 200; pair++) {
+                double[] p1 = randomHistogramm(random, length, pair % 2 == 0);
+                double[] p2 = randomHistogramm(random, length, pair % 3 == 0);
+                double original = originalJensenShannonDivergence(p1, p2);
+
+                Kernels.VECTORIZED = false;
+                scalarExact &= JensonShanonDivergence.jensenShannonDivergence(p1, p2) == original;
+                Kernels.VECTORIZED = true;
+                vectorClose &= close(JensonShanonDivergence.jensenShannonDivergence(p1, p2), original);
+            }
+            Kernels.VECTORIZED = vectorized;
+            check("fused divergence, " + length + " bins: scalar loop = original code", scalarExact);
+            check("fused divergence, " + length + " bins: vectorized loop = original code within rounding", vectorClose);
+        }
+    }
+
+    /**
+     * The entropy decomposition H(M) - (H(P) + H(Q))/2 must give the divergence of the original code up to the rounding
+     * of its entropies (of the order of N ln(N), N the total count), with and without the x ln(x) table, and the table
+     * must hold exactly the computed values
+     */
+    private static void checkDecomposedDivergence() {
+        boolean table = true;
+        for (int twice = 0; twice < 20000; twice++) {
+            double x = twice / 2.0;
+            table &= JensonShanonDivergence.xLogX(x) == (x == 0 ? 0 : x * Math.log(x));
+        }
+        table &= Double.isNaN(JensonShanonDivergence.xLogX(-1.5)) && Double.isNaN(JensonShanonDivergence.xLogX(-0.5));
+        check("x ln(x): table = computed values, NaN for negative x", table);
+
+        Random random = new Random(SEED + 1);
+        boolean logTable = JensonShanonDivergence.LOG_TABLE;
+        for (boolean useTable : new boolean[] {true, false}) {
+            JensonShanonDivergence.LOG_TABLE = useTable;
+            for (int length : new int[] {1, 64, 300}) {
+                boolean close = true;
+                for (int pair = 0; pair < 200; pair++) {
+                    double[] p1 = randomHistogramm(random, length, pair % 2 == 0);
+                    double[] p2 = randomHistogramm(random, length, pair % 3 == 0);
+                    double xLogX1 = JensonShanonDivergence.xLogX(p1);
+                    double xLogX2 = JensonShanonDivergence.xLogX(p2);
+                    double original = originalJensenShannonDivergence(p1, p2);
+                    double tolerance = 1e-12 * Math.max(1.0, Math.abs(xLogX1) + Math.abs(xLogX2));
+
+                    double dense = JensonShanonDivergence.jensenShannonDivergence(p1, p2, xLogX1, xLogX2);
+                    int[] indexes1 = nonZeroIndexes(p1), indexes2 = nonZeroIndexes(p2);
+                    double sparse = JensonShanonDivergence.jensenShannonDivergence(indexes1, nonZeroValues(p1, indexes1),
+                            indexes2, nonZeroValues(p2, indexes2), xLogX1, xLogX2);
+                    close &= dense >= 0 && Math.abs(dense - original) <= tolerance
+                            && sparse >= 0 && Math.abs(sparse - original) <= tolerance;
+                }
+                check("decomposed divergence, " + length + " bins, log table " + useTable + ": dense and sparse = original code within rounding", close);
+            }
+        }
+        JensonShanonDivergence.LOG_TABLE = logTable;
+    }
+
+    /**
+     * The sparse merge must give the divergence of the original code bit for bit, and DivergenceTiles (with
+     * EXACT_DIVERGENCES) the same matrix whether it stores the histogramms sparse or dense
+     */
+    private static void checkSparseDivergence() {
+        Random random = new Random(SEED + 2);
+        boolean exact = true;
+        for (int pair = 0; pair < 1000; pair++) {
+            int length = 1 + random.nextInt(300);
+            double[] p1 = randomHistogramm(random, length, pair % 2 == 0);
+            double[] p2 = randomHistogramm(random, length, pair % 3 == 0);
+            int[] indexes1 = nonZeroIndexes(p1), indexes2 = nonZeroIndexes(p2);
+            exact &= JensonShanonDivergence.jensenShannonDivergence(indexes1, nonZeroValues(p1, indexes1),
+                    indexes2, nonZeroValues(p2, indexes2)) == originalJensenShannonDivergence(p1, p2);
+        }
+        check("sparse divergence = original code", exact);
+
+        double[][] histogramms = new double[150][];
+        for (int i = 0; i < histogramms.length; i++) {
+            histogramms[i] = randomHistogramm(random, 100, i % 4 != 0);
+        }
+        double density = DivergenceTiles.SPARSE_DENSITY;
+        try (SymmetricMatrix sparse = new SymmetricMatrix(histogramms.length, false);
+             SymmetricMatrix dense = new SymmetricMatrix(histogramms.length, false)) {
+            DivergenceTiles.SPARSE_DENSITY = 2.0;
+            double sparseMax = DivergenceTiles.computeDivergences(histogramms, sparse);
+            DivergenceTiles.SPARSE_DENSITY = 0.0;
+            double denseMax = DivergenceTiles.computeDivergences(histogramms, dense);
+
+            boolean same = sparseMax == denseMax;
+            for (int i = 0; i < histogramms.length; i++) {
+                for (int j = i + 1; j < histogramms.length; j++) {
+                    same &= sparse.get(i, j) == dense.get(i, j)
+                            && sparse.get(i, j) == originalJensenShannonDivergence(histogramms[i], histogramms[j]);
+                }
+            }
+            check("divergence tiles: sparse = dense = original code", same);
+        } finally {
+            DivergenceTiles.SPARSE_DENSITY = density;
+        }
+    }
+
+    /**
+     * DistanceSweep must give the matrixes of calculcateDistanceMatrix at every step of a sweep over growing prefixes of a
+     * ranked list of tags, after a selection that is not a prefix, and when it falls back to calculcateDistanceMatrix
+     * (too many tags); with single precision (float sums), within float rounding
+     */
+    private static void checkSweep() {
+        TagCorpus corpus = randomCorpus(new Random(SEED + 3), 3000, 250, 10);
+        SparseCooccurrence cooccurrences = CooccurrenceAccumulator.accumulate(corpus);
+        List<String> ranked = new ArrayList<>(corpus.tagsWithIds().values());
+        Collections.shuffle(ranked, new Random(SEED));
+
+        boolean singlePrecision = DistancesMT.SINGLE_PRECISION_DISTANCES;
+        int maxSweepTags = DistanceSweep.MAX_SWEEP_TAGS;
+        try {
+            for (boolean single : new boolean[] {false, true}) {
+                DistancesMT.SINGLE_PRECISION_DISTANCES = single;
+                double tolerance = single ? 1e-4 : 0.0;
+                try (DistanceSweep sweep = new DistanceSweep(corpus, cooccurrences, corpus.tagFrequencies())) {
+                    for (int length : new int[] {1, 2, 10, 40, 120, 250}) {
+                        ArrayList<String> selection = new ArrayList<>(ranked.subList(0, length));
+                        check("sweep, " + length + " of " + ranked.size() + " tags" + (single ? ", single precision" : "")
+                                + ": = calculcateDistanceMatrix", sameDistances(sweep.distances(selection), corpus, selection, tolerance));
+                    }
+
+                    ArrayList<String> reversed = new ArrayList<>(ranked.subList(0, 40));
+                    Collections.reverse(reversed);
+                    check("sweep, selection that is not a prefix" + (single ? ", single precision" : "") + ": = calculcateDistanceMatrix",
+                            sameDistances(sweep.distances(reversed), corpus, reversed, tolerance));
+
+                    DistanceSweep.MAX_SWEEP_TAGS = 0;
+                    ArrayList<String> selection = new ArrayList<>(ranked.subList(0, 60));
+                    check("sweep, too many tags" + (single ? ", single precision" : "") + ": = calculcateDistanceMatrix",
+                            sameDistances(sweep.distances(selection), corpus, selection, 0.0));
+                    DistanceSweep.MAX_SWEEP_TAGS = maxSweepTags;
+                }
+            }
+        } finally {
+            DistancesMT.SINGLE_PRECISION_DISTANCES = singlePrecision;
+            DistanceSweep.MAX_SWEEP_TAGS = maxSweepTags;
+        }
+    }
+
+    /**
+     * @return true if the distances differ by at most tolerance from the ones of calculcateDistanceMatrix for the selection
+     */
+    private static boolean sameDistances(SymmetricMatrix distances, TagCorpus corpus, ArrayList<String> selection, double tolerance) {
+        try (SymmetricMatrix expected = DistancesMT.calculcateDistanceMatrix(corpus.tagsWithIds(), corpus, selection, "")) {
+            boolean same = distances.size() == expected.size();
+            for (int i = 0; same && i < expected.size(); i++) {
+                for (int j = i; j < expected.size(); j++) {
+                    double difference = Math.abs(distances.get(i, j) - expected.get(i, j));
+                    same &= tolerance == 0.0 ? Double.compare(distances.get(i, j), expected.get(i, j)) == 0 : difference <= tolerance;
+                }
+            }
+            return same;
+        }
+    }
+
+    /**
+     * @return positions of the non zero bins of a histogramm, ascending
+     */
+    private static int[] nonZeroIndexes(double[] histogramm) {
+        int count = 0;
+        for (double value : histogramm) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        count = 0;
+        for (int k = 0; k < histogramm.length; k++) {
+            if (histogramm[k] != 0) {
+                indexes[count++] = k;
+            }
+        }
+        return indexes;
+    }
+
+    private static double[] nonZeroValues(double[] histogramm, int[] indexes) {
+        double[] values = new double[indexes.length];
+        for (int k = 0; k < indexes.length; k++) {
+            values[k] = histogramm[indexes[k]];
+        }
+        return values;
+    }
+
+    /**
+     * Jensen-Shannon divergence as first written (MALLET): average array, then K(p1 || m) and K(p2 || m)
+     */
+    private static double originalJensenShannonDivergence(double[] p1, double[] p2) {
+        double[] average = new double[p1.length];
+        for (int i = 0; i < p1.length; ++i) {
+            average[i] += (p1[i] + p2[i])/2;
+        }
+        return (originalKlDivergence(p1, average) + originalKlDivergence(p2, average))/2;
+    }
+
+    private static double originalKlDivergence(double[] p1, double[] p2) {
+        double klDiv = 0.0;
+        for (int i = 0; i < p1.length; ++i) {
+            if (p1[i] == 0) { continue; }
+            if (p2[i] == 0.0) { continue; }
+            klDiv += p1[i] * Math.log( p1[i] / p2[i] );
+        }
+        return klDiv / JensonShanonDivergence.log2;
+    }
+
+    /**
+     * Histogramm of raw counts (0 to 40, about half of them 0 if sparse), or the same divided by its total if not raw
+     */
+    private static double[] randomHistogramm(Random random, int length, boolean sparse) {
+        double[] histogramm = new double[length];
+        double total = 0;
+        for (int k = 0; k < length; k++) {
+            if (!sparse || random.nextBoolean()) {
+                histogramm[k] = random.nextInt(41);
+                total += histogramm[k];
+            }
+        }
+        if (random.nextInt(4) == 0 && total > 0) {
+            for (int k = 0; k < length; k++) {
+                histogramm[k] /= total;
+            }
+        }
+        return histogramm;
+    }
+
+    /**
+     * @return true if a and b are equal up to rounding errors of sums of a few thousand terms
+     */
+    private static boolean close(double a, double b) {
+        return Math.abs(a - b) <= 1e-12 * Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+    /**
+     * Corpus of images with 1 to maxTags tags drawn from tagCount tags, skewed towards the first ones (frequent tags)
+     */
+    private static TagCorpus randomCorpus(Random random, int images, int tagCount, int maxTags) {
+        TagCorpus.Builder builder = new TagCorpus.Builder();
+        for (int image = 0; image < images; image++) {
+            int[] ids = new int[1 + random.nextInt(maxTags)];
+            for (int k = 0; k < ids.length; k++) {
+                double u = random.nextDouble();
+                ids[k] = builder.intern("tag" + (int) (u * u * tagCount));
+            }
+            builder.addImage("image" + image, ids);
+        }
+        return builder.build();
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
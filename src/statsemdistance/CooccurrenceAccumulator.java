@@ -0,0 +1,147 @@
+package statsemdistance;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds the cooccurrence matrix of all tags in a single pass over the images:
+ * every pair of tags found in an image is emitted into a sparse pair counter.
+ * Cost is the sum over all images of (tags per image)^2 instead of (unique tags)^2 * images.
+ * In parallel mode, images are split into chunks on the fork-join pool, every chunk has its own counter and the
+ * counters are merged two by two; counts are integers, so the result is the same as the sequential one.
+ * @author mgarchery
+ */
+public class CooccurrenceAccumulator {
+
+    private static final int MIN_CHUNK_IMAGES = 1024;
+
+    private final TagCorpus corpus;
+    private final PairCounter counter;
+
+    /**
+     * @param corpus all the images and their corresponding tags
+     * @param expectedPairs number of distinct pairs expected (only used for sizing)
+     */
+    public CooccurrenceAccumulator(TagCorpus corpus, int expectedPairs) {
+        this.corpus = corpus;
+        this.counter = new PairCounter(expectedPairs);
+    }
+
+    /**
+     * Counts the cooccurrences of all the tags of the corpus
+     * @param corpus all the images and their corresponding tags
+     * @return sparse symmetric cooccurrence matrix, indices are the tag ids of the corpus
+     */
+    public static SparseCooccurrence accumulate(TagCorpus corpus) {
+        return accumulate(corpus, false);
+    }
+
+    /**
+     * Counts the cooccurrences of all the tags of the corpus
+     * @param corpus all the images and their corresponding tags
+     * @param parallel true to split the images across the fork-join pool of Multithreading
+     * @return sparse symmetric cooccurrence matrix, indices are the tag ids of the corpus
+     */
+    public static SparseCooccurrence accumulate(TagCorpus corpus, boolean parallel) {
+        int images = corpus.imageCount();
+        PairCounter counter;
+
+        if (parallel) {
+            int chunk = Math.max(MIN_CHUNK_IMAGES, images / (Multithreading.PARALLELISM * 4));
+            counter = Multithreading.getForkJoinPool().invoke(new ChunkTask(corpus, 0, images, chunk));
+        } else {
+            CooccurrenceAccumulator accumulator = new CooccurrenceAccumulator(corpus, expectedPairs(corpus, 0, images));
+            accumulator.addImages(0, images);
+            counter = accumulator.counter;
+        }
+        return SparseCooccurrence.fromPairs(corpus.tagCount(), counter);
+    }
+
+    /**
+     * Upper bound of the distinct pairs emitted by a range of images (capped to keep counters reasonably small)
+     */
+    private static int expectedPairs(TagCorpus corpus, int from, int to) {
+        int[] offsets = corpus.offsets();
+        long tags = corpus.tagCount();
+        long pairs = 0;
+        for (int image = from; image < to; image++) {
+            long n = offsets[image + 1] - offsets[image];
+            pairs += n * (n - 1) / 2;
+        }
+        return (int) Math.min(Math.min(pairs, tags * (tags - 1) / 2), 1 << 24);
+    }
+
+    /**
+     * Counts the pairs of a range of images, splitting it in two halves until it is small enough
+     */
+    private static class ChunkTask extends RecursiveTask<PairCounter> {
+
+        private final TagCorpus corpus;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        ChunkTask(TagCorpus corpus, int from, int to, int chunk) {
+            this.corpus = corpus;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected PairCounter compute() {
+            if (to - from <= chunk) {
+                CooccurrenceAccumulator accumulator = new CooccurrenceAccumulator(corpus, expectedPairs(corpus, from, to));
+                accumulator.addImages(from, to);
+                return accumulator.counter;
+            }
+
+            int middle = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(corpus, from, middle, chunk);
+            left.fork();
+            PairCounter right = new ChunkTask(corpus, middle, to, chunk).compute();
+            PairCounter merged = left.join();
+
+            /* merge the smaller counter into the bigger one */
+            if (merged.size() < right.size()) {
+                right.merge(merged);
+                return right;
+            }
+            merged.merge(right);
+            return merged;
+        }
+    }
+
+    /**
+     * Emits all the tag pairs of the images from (inclusive) to to (exclusive)
+     * @param from first image index
+     * @param to last image index + 1
+     */
+    public void addImages(int from, int to) {
+        int[] offsets = corpus.offsets();
+        int[] tags = corpus.tags();
+
+        for (int image = from; image < to; image++) {
+            int end = offsets[image + 1];
+            /* tags of an image are sorted and unique, so tags[k] < tags[l] */
+            for (int k = offsets[image]; k < end; k++) {
+                for (int l = k + 1; l < end; l++) {
+                    counter.increment(tags[k], tags[l]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the pairs counted so far
+     */
+    PairCounter counter() {
+        return counter;
+    }
+
+    /**
+     * @return the cooccurrences accumulated so far as sparse symmetric matrix
+     */
+    public SparseCooccurrence toSparseCooccurrence() {
+        return SparseCooccurrence.fromPairs(corpus.tagCount(), counter);
+    }
+}
@@ -6,7 +6,6 @@
 package statsemdistance;
 
 import java.util.ArrayList;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
 
@@ -19,18 +18,24 @@ public class CoocurrenceHistogramm extends Thread {
 
     int i;
     String tag;
-    Map imagesTags;
+    TagCorpus corpus;
     ArrayList<String> representativeTags;
+    double[][] histogramms;
  
+    /**
+     * @param histogramms receives the histogramm of the tag at index i, as a primitive row
+     */
     public CoocurrenceHistogramm( int i,
                                  String tag,
-                                 Map imagesTags,
-                                 ArrayList<String> representativeTags ) {
+                                 TagCorpus corpus,
+                                 ArrayList<String> representativeTags,
+                                 double[][] histogramms ) {
         
         this.i = i;
         this.tag = tag;
-        this.imagesTags = imagesTags;
+        this.corpus = corpus;
         this.representativeTags = representativeTags;
+        this.histogramms = histogramms;
         //System.out.println("CoocurrenceHistogramm : " + i + " created");
     }
  
@@ -38,8 +43,21 @@ public class CoocurrenceHistogramm extends Thread {
     @Override
     public void run() {
 
-        ArrayList<Integer> cooccurrence = DistancesMT.calculateCooccurrences(tag, representativeTags, imagesTags);
-        DistancesMT.histogramms.put(i, cooccurrence);
+        ArrayList<Integer> cooccurrence = DistancesMT.calculateCooccurrences(tag, representativeTags, corpus);
+        
+        /* converted once, every task writes its own row */
+        double[] histogramm = new double[cooccurrence.size()];
+        double total = 0;
+        for (int k = 0; k < histogramm.length; k++) {
+            histogramm[k] = cooccurrence.get(k);
+            total += histogramm[k];
+        }
+        if (DistancesMT.NORMALIZE_HISTOGRAMMS && total > 0) {
+            for (int k = 0; k < histogramm.length; k++) {
+                histogramm[k] /= total;
+            }
+        }
+        histogramms[i] = histogramm;
         //System.out.println("CoocurrenceHistogramm : " + i + " executed");
         
     }
@@ -0,0 +1,210 @@
+package statsemdistance;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of an interned TagCorpus, written once and memory mapped on later runs so that a restart does not
+ * parse and singularize the input again.
+ * Format (big endian):
+ *   int magic, int version, long source length, int reader flags, int imageCount, int tagCount, int total number of image tags,
+ *   int[imageCount + 1] offsets, int[total] tag ids, int[tagCount] tag frequencies,
+ *   tagCount strings (tags by id), imageCount strings (image ids), a string being an int byte length followed by its UTF-8 bytes.
+ * The source length (bytes of the file the corpus was read from, -1 if it was not read from a file) and the reader flags
+ * (cleaning steps applied to the tags) are checked when the snapshot is read back for a source, so that a snapshot of
+ * another input, or of tags read another way, is never loaded in its place.
+ * The version must be increased whenever the format (or the way tags are cleaned and singularized) changes.
+ * @author mgarchery
+ */
+public class CorpusSnapshot {
+
+    public static final int MAGIC = 0x53534443; // "SSDC"
+    public static final int VERSION = 3;
+
+    public static final int CLEANED_CELLS = 1; // reader flag: quotes removed from the cells (DistancesMT.cleanCell)
+    public static final int SINGULARIZED_TAGS = 2; // reader flag: tags singularized (TagSingularizer)
+
+    private static final int HEADER_SIZE = 8 + 6 * 4;
+    private static final long MAX_WINDOW = 1 << 30; // bytes mapped at once
+
+    /**
+     * Writes a snapshot of a corpus. The file is first written next to its destination and then moved, so that an
+     * interrupted run never leaves a truncated snapshot behind.
+     * @param corpus the corpus
+     * @param file the snapshot file
+     * @param sourceLength length in bytes of the file the corpus was read from, -1 if it was not read from a file
+     * @param flags reader flags (CLEANED_CELLS, SINGULARIZED_TAGS) of the corpus tags
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(TagCorpus corpus, File file, long sourceLength, int flags) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        int[] offsets = corpus.offsets();
+        int[] tags = corpus.tags();
+        int[] frequencies = corpus.tagFrequencies();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeInt(flags);
+            out.writeInt(corpus.imageCount());
+            out.writeInt(corpus.tagCount());
+            out.writeInt(tags.length);
+
+            writeInts(out, offsets);
+            writeInts(out, tags);
+            writeInts(out, frequencies);
+
+            for (int id = 0; id < corpus.tagCount(); id++) {
+                writeString(out, corpus.tag(id));
+            }
+            for (int image = 0; image < corpus.imageCount(); image++) {
+                writeString(out, corpus.imageId(image));
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a snapshot back, whatever its source
+     * @param file the snapshot file
+     * @return the corpus, identical to the written one (same images, same order, same tag ids)
+     * @throws IOException if the file cannot be read, is not a snapshot or has another version
+     */
+    public static TagCorpus read(File file) throws IOException {
+        return read(file, -1, 0, false);
+    }
+
+    /**
+     * Reads a snapshot back, through memory mapped windows of the file, if it was written for the given source
+     * @param file the snapshot file
+     * @param sourceLength length in bytes of the source the corpus is expected from, -1 if it is not a file
+     * @param flags reader flags the corpus tags are expected with
+     * @return the corpus, identical to the written one (same images, same order, same tag ids)
+     * @throws IOException if the file cannot be read, is not a snapshot, has another version or another source length or flags
+     */
+    public static TagCorpus read(File file, long sourceLength, int flags) throws IOException {
+        return read(file, sourceLength, flags, true);
+    }
+
+    private static TagCorpus read(File file, long sourceLength, int flags, boolean checkSource) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is not a corpus snapshot");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a corpus snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has snapshot version " + version + ", expected " + VERSION);
+            }
+            long writtenLength = header.getLong();
+            int writtenFlags = header.getInt();
+            if (checkSource && writtenLength != sourceLength) {
+                throw new IOException(file + " was written for a source of " + writtenLength + " bytes, not " + sourceLength);
+            }
+            if (checkSource && writtenFlags != flags) {
+                throw new IOException(file + " was written with reader flags " + writtenFlags + ", expected " + flags);
+            }
+            int imageCount = header.getInt();
+            int tagCount = header.getInt();
+            int total = header.getInt();
+
+            long position = HEADER_SIZE;
+            if (position + 4L * (imageCount + 1 + total + tagCount) > size) {
+                throw new IOException(file + " is truncated");
+            }
+            int[] offsets = readInts(channel, position, imageCount + 1);
+            position += 4L * offsets.length;
+            int[] tags = readInts(channel, position, total);
+            position += 4L * tags.length;
+            int[] frequencies = readInts(channel, position, tagCount);
+            position += 4L * frequencies.length;
+
+            String[] strings = readStrings(channel, position, tagCount + imageCount, file);
+            String[] names = new String[tagCount];
+            String[] imageIds = new String[imageCount];
+            System.arraycopy(strings, 0, names, 0, tagCount);
+            System.arraycopy(strings, tagCount, imageIds, 0, imageCount);
+
+            return new TagCorpus(imageIds, offsets, tags, new TagDictionary(names), frequencies);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Bulk copies count ints starting at position out of mapped windows of the file
+     */
+    private static int[] readInts(FileChannel channel, long position, int count) throws IOException {
+        int[] values = new int[count];
+        int done = 0;
+        while (done < count) {
+            int length = (int) Math.min(count - done, MAX_WINDOW / 4);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * done, 4L * length);
+            buffer.asIntBuffer().get(values, done, length);
+            done += length;
+        }
+        return values;
+    }
+
+    /**
+     * Decodes count length prefixed strings starting at position, window by window (a window always ends after a complete string)
+     */
+    private static String[] readStrings(FileChannel channel, long position, int count, File file) throws IOException {
+        String[] strings = new String[count];
+        long size = channel.size();
+        byte[] bytes = new byte[64];
+        int done = 0;
+
+        while (done < count) {
+            long length = Math.min(MAX_WINDOW, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int start = done;
+            while (done < count && buffer.remaining() >= 4) {
+                int stringLength = buffer.getInt(buffer.position());
+                if (stringLength < 0 || stringLength > length - 4) {
+                    throw new IOException(file + " is truncated or corrupted");
+                }
+                if (buffer.remaining() - 4 < stringLength) {
+                    break;
+                }
+                buffer.getInt();
+                if (stringLength > bytes.length) {
+                    bytes = new byte[Math.max(stringLength, bytes.length * 2)];
+                }
+                buffer.get(bytes, 0, stringLength);
+                strings[done++] = new String(bytes, 0, stringLength, StandardCharsets.UTF_8);
+            }
+            if (done == start) {
+                throw new IOException(file + " is truncated");
+            }
+            position += buffer.position();
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,219 @@
+package statsemdistance;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cosine similarity matrix of all tags as the Gram product of the row normalized cooccurrence matrix: S = N C C' N
+ * with N = diag(1 / |C_i|), i.e. S_ij = (C_i . C_j) / |C_i| / |C_j|. The diagonal is set to 0.
+ * Row norms are computed once. The product is computed row by row (Gustavson): row i of C C' is the sum of the rows k
+ * of C weighted by C_ik, accumulated in a dense buffer, so only the non zero entries of C are visited.
+ * Rows are split into tiles computed on the fork-join pool of Multithreading; every tile owns the pairs (i, j > i) of its
+ * rows and writes both (i, j) and (j, i), so tiles never write the same entries.
+ * Counts are integers, the dot products are exact: the result is the same as dividing every dot product by both norms.
+ * Single rows can also be computed one at a time (fullRow), for callers that never keep the whole matrix.
+ * @author mgarchery
+ */
+public class CosineGram {
+
+    public static int TILE_ROWS = 64; // rows computed by one fork-join task
+
+    private final SparseCooccurrence cooccurrences;
+    private final double[] norms;
+    private final DenseMatrix similarities;
+
+    /**
+     * @param similarities matrix receiving the similarities, null if rows are only computed one at a time with fullRow
+     */
+    CosineGram(SparseCooccurrence cooccurrences, DenseMatrix similarities) {
+        this.cooccurrences = cooccurrences;
+        this.similarities = similarities;
+        this.norms = new double[cooccurrences.size()];
+        for (int i = 0; i < norms.length; i++) {
+            norms[i] = cooccurrences.rowNorm(i);
+        }
+    }
+
+    /**
+     * Computes the cosine similarity matrix
+     * @param cooccurrences sparse symmetric cooccurrence matrix
+     * @param backend backend creating the matrix
+     * @return similarity matrix (similarity of a tag with itself, or with a tag it never cooccurs with, is 0)
+     */
+    public static DenseMatrix similarities(SparseCooccurrence cooccurrences, MatrixBackend backend) {
+        int size = cooccurrences.size();
+        return similarities(cooccurrences, backend.zeros(size, size));
+    }
+
+    /**
+     * Computes the cosine similarity matrix into a given matrix
+     * @param cooccurrences sparse symmetric cooccurrence matrix
+     * @param similarities square matrix filled with zeros, receiving the similarities (may be a SymmetricMatrix)
+     * @return the similarities matrix
+     */
+    public static DenseMatrix similarities(SparseCooccurrence cooccurrences, DenseMatrix similarities) {
+        CosineGram gram = new CosineGram(cooccurrences, similarities);
+        Multithreading.getForkJoinPool().invoke(gram.new TileTask(0, cooccurrences.size()));
+        return similarities;
+    }
+
+    /**
+     * Computes the rows from (inclusive) to to (exclusive), splitting them in two halves until they fit into a tile
+     */
+    private class TileTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+
+        TileTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILE_ROWS) {
+                computeRows(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(from, middle), new TileTask(middle, to));
+        }
+    }
+
+    /**
+     * Computes the upper half entries of the rows from (inclusive) to to (exclusive) and mirrors them
+     */
+    private void computeRows(int from, int to) {
+        int[] offsets = cooccurrences.offsets();
+        int[] columns = cooccurrences.columns();
+        int[] values = cooccurrences.values();
+
+        double[] products = new double[cooccurrences.size()];
+        int[] touched = new int[cooccurrences.size()];
+
+        for (int i = from; i < to; i++) {
+            int count = 0;
+
+            /* row i of C C', only columns j > i */
+            for (int a = offsets[i]; a < offsets[i + 1]; a++) {
+                int k = columns[a];
+                double weight = values[a];
+                int end = offsets[k + 1];
+                int b = firstAbove(columns, offsets[k], end, i);
+                for (; b < end; b++) {
+                    int j = columns[b];
+                    if (products[j] == 0) {
+                        touched[count++] = j;
+                    }
+                    products[j] += weight * values[b];
+                }
+            }
+
+            for (int t = 0; t < count; t++) {
+                int j = touched[t];
+                double cosSim = products[j];
+                cosSim /= norms[i];
+                cosSim /= norms[j];
+                similarities.set(i, j, cosSim);
+                similarities.set(j, i, cosSim);
+                products[j] = 0;
+            }
+        }
+    }
+
+    /**
+     * Reusable buffer for one full row of the similarity matrix, see fullRow
+     */
+    static final class RowBuffer {
+
+        final double[] row;        // the row, 0 outside of touched
+        private final int[] touched;
+        private int count = 0;
+
+        RowBuffer(int size) {
+            row = new double[size];
+            touched = new int[size];
+        }
+
+        /** @return number of non zero entries of the row */
+        int count() {
+            return count;
+        }
+
+        /** @return column of the t-th non zero entry, by ascending column */
+        int column(int t) {
+            return touched[t];
+        }
+    }
+
+    /**
+     * Computes the whole row i of the similarity matrix (both halves) into a buffer, replacing the previous row.
+     * Entries are the same as the ones of the full matrix computed by similarities.
+     * @param i row index
+     * @param buffer buffer of this thread
+     * @return sum of the row (the degree of i), summed by ascending column
+     */
+    double fullRow(int i, RowBuffer buffer) {
+        int[] offsets = cooccurrences.offsets();
+        int[] columns = cooccurrences.columns();
+        int[] values = cooccurrences.values();
+        double[] row = buffer.row;
+        int[] touched = buffer.touched;
+
+        for (int t = 0; t < buffer.count; t++) {
+            row[touched[t]] = 0;
+        }
+        int count = 0;
+
+        for (int a = offsets[i]; a < offsets[i + 1]; a++) {
+            int k = columns[a];
+            double weight = values[a];
+            for (int b = offsets[k]; b < offsets[k + 1]; b++) {
+                int j = columns[b];
+                if (j == i) {
+                    continue;
+                }
+                if (row[j] == 0) {
+                    touched[count++] = j;
+                }
+                row[j] += weight * values[b];
+            }
+        }
+        buffer.count = count;
+
+        /* same division order as the mirrored entries of computeRows, which divides by the norm of the smaller index first */
+        Arrays.sort(touched, 0, count);
+        double degree = 0;
+        for (int t = 0; t < count; t++) {
+            int j = touched[t];
+            double cosSim = row[j];
+            if (j > i) {
+                cosSim /= norms[i];
+                cosSim /= norms[j];
+            } else {
+                cosSim /= norms[j];
+                cosSim /= norms[i];
+            }
+            row[j] = cosSim;
+            degree += cosSim;
+        }
+        return degree;
+    }
+
+    /**
+     * @return first position p in from ... to - 1 with columns[p] > i (to if there is none), columns being sorted
+     */
+    private static int firstAbove(int[] columns, int from, int to, int i) {
+        int low = from, high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (columns[middle] <= i) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
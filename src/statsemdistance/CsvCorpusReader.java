@@ -0,0 +1,227 @@
+package statsemdistance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a *.csv file (image id, tag, tag, ...) directly into a TagCorpus.
+ * The file is memory mapped and scanned byte by byte for commas and line ends; every cell is resolved to its tag id
+ * through a ByteSliceInterner, so a String is only created (and cleaned and singularized) the first time a cell is met.
+ * Image ids are not singularized.
+ * Gives the same images and tags as DistancesMT.imageTagsFromFile, blank lines are skipped, and the same tag ids as
+ * TagCorpus.fromMap gives its map (see TagCorpus.Builder.inMapOrder), so that results which break ties by tag id do not
+ * depend on the reader.
+ * @author mgarchery
+ */
+public class CsvCorpusReader {
+
+    public static int WINDOW_SIZE = 1 << 30; // bytes mapped at once, a line may not be longer than this
+    private static final long MIN_CHUNK_SIZE = 1 << 20; // smaller files are not split
+
+    private final TagCorpus.Builder builder = new TagCorpus.Builder();
+    private final ByteSliceInterner interner = new ByteSliceInterner();
+    private int[] row = new int[64];
+    private byte[] decodeBuffer = new byte[64];
+
+    /**
+     * Reads a whole file
+     * @param file the *.csv file
+     * @return corpus with all the images of the file, in the order of TagCorpus.fromMap(DistancesMT.imageTagsFromFile(file))
+     * @throws IOException if the file cannot be read
+     */
+    public static TagCorpus read(File file) throws IOException {
+        return read(file, 1);
+    }
+
+    /**
+     * Reads a whole file, split at line boundaries into chunks parsed on separate threads.
+     * Every chunk is parsed with its own tag dictionary, the dictionaries are then merged and the tags remapped in file order:
+     * the corpus is the same as the one read by a single thread (same images, same order, same tag ids).
+     * @param file the *.csv file
+     * @param threads maximum number of chunks parsed at the same time
+     * @return corpus with all the images of the file, in the order of TagCorpus.fromMap(DistancesMT.imageTagsFromFile(file))
+     * @throws IOException if the file cannot be read
+     */
+    public static TagCorpus read(final File file, int threads) throws IOException {
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, Math.min(threads, size / MIN_CHUNK_SIZE));
+
+            if (chunks == 1) {
+                CsvCorpusReader reader = new CsvCorpusReader();
+                reader.parseRange(channel, 0, size, file);
+                return reader.builder.inMapOrder().build();
+            }
+
+            /* Chunk boundaries, moved forward to the beginning of the next line */
+            final long[] boundaries = new long[chunks + 1];
+            boundaries[chunks] = size;
+            for (int chunk = 1; chunk < chunks; chunk++) {
+                boundaries[chunk] = Math.max(boundaries[chunk - 1], nextLineStart(channel, size * chunk / chunks, size));
+            }
+
+            List<Callable<CsvCorpusReader>> tasks = new ArrayList<>();
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                final long start = boundaries[chunk];
+                final long end = boundaries[chunk + 1];
+                tasks.add(new Callable<CsvCorpusReader>() {
+                    @Override
+                    public CsvCorpusReader call() throws IOException {
+                        CsvCorpusReader reader = new CsvCorpusReader();
+                        reader.parseRange(channel, start, end, file);
+                        return reader;
+                    }
+                });
+            }
+
+            /* Merge the chunks in file order */
+            TagCorpus.Builder builder = new TagCorpus.Builder();
+            try {
+                for (Future<CsvCorpusReader> result : Multithreading.getForkJoinPool().invokeAll(tasks)) {
+                    builder.addAll(result.get().builder);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error while reading " + file, e.getCause());
+            }
+            return builder.inMapOrder().build();
+        }
+    }
+
+    /**
+     * Parses the bytes start ... end - 1 of the file, start must be the beginning of a line
+     */
+    private void parseRange(FileChannel channel, long start, long end, File file) throws IOException {
+        long position = start;
+
+        /* Map the range window by window, a window always restarts at the beginning of a line */
+        while (position < end) {
+            long length = Math.min(WINDOW_SIZE, end - position);
+            boolean last = position + length == end;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+            int consumed = parseLines(buffer, 0, (int) length, last);
+            if (consumed == 0) {
+                throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + position + " of " + file);
+            }
+            position += consumed;
+        }
+    }
+
+    /**
+     * @return the first position p >= position such that p is the beginning of a line (or the end of the file)
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+        long p = position - 1;
+        while (p + 1 < size) {
+            buffer.clear();
+            int read = channel.read(buffer, p);
+            for (int i = 0; i < read; i++) {
+                byte c = buffer.get(i);
+                if (c == '\n' || c == '\r') {
+                    return p + i + 1;
+                }
+            }
+            p += Math.max(read, 1);
+        }
+        return size;
+    }
+
+    /**
+     * Parses all the complete lines of buffer[from] ... buffer[to - 1] into the builder
+     * @param buffer bytes of the file
+     * @param from first byte, must be the beginning of a line
+     * @param to end of the bytes to parse (exclusive)
+     * @param last true if to is the end of the file (or of the chunk), i.e. the last line is complete even without line end
+     * @return number of bytes consumed (the beginning of the first incomplete line)
+     */
+    int parseLines(ByteBuffer buffer, int from, int to, boolean last) {
+        int lineStart = from;
+        int cellStart = from;
+        int cells = 0;       // cells of the current line (image id excluded) in row
+        int keptCells = 0;   // cells up to the last non empty one, trailing empty cells are dropped like String.split does
+        String imageId = null;
+
+        for (int i = from; i <= to; i++) {
+            byte c = i < to ? buffer.get(i) : (byte) '\n';
+            if (i == to && !last) {
+                return lineStart - from;
+            }
+            if (c != ',' && c != '\n' && c != '\r') {
+                continue;
+            }
+
+            /* end of a cell */
+            if (imageId == null) {
+                imageId = DistancesMT.cleanCell(decode(buffer, cellStart, i));
+                keptCells = i > cellStart ? 0 : -1;
+            } else {
+                if (cells == row.length) {
+                    row = Arrays.copyOf(row, cells * 2);
+                }
+                row[cells++] = tagId(buffer, cellStart, i);
+                if (i > cellStart) {
+                    keptCells = cells;
+                }
+            }
+            cellStart = i + 1;
+
+            /* end of a line */
+            if (c != ',') {
+                if (keptCells >= 0) {
+                    builder.addImage(imageId, Arrays.copyOf(row, keptCells));
+                }
+                if (c == '\r' && i + 1 < to && buffer.get(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+                cellStart = i + 1;
+                cells = 0;
+                imageId = null;
+            }
+        }
+        return to - from;
+    }
+
+    /**
+     * Finds the tag id of a cell, interning it on first sight
+     */
+    private int tagId(ByteBuffer buffer, int from, int to) {
+        int hash = ByteSliceInterner.hash(buffer, from, to);
+        int id = interner.get(buffer, from, to, hash);
+        if (id < 0) {
+            id = builder.intern(DistancesMT.cleanTag(decode(buffer, from, to)));
+            interner.put(buffer, from, to, hash, id);
+        }
+        return id;
+    }
+
+    private String decode(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length > decodeBuffer.length) {
+            decodeBuffer = new byte[Math.max(length, decodeBuffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            decodeBuffer[i] = buffer.get(from + i);
+        }
+        return new String(decodeBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,286 @@
+package statsemdistance;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the images and their getty tags of a lat/lon bounding box from the flickr database (postgres) into a TagCorpus.
+ * Rows are read through a server side cursor, FETCH_SIZE rows at a time, and go straight into the corpus builder,
+ * so the whole result set is never held in memory.
+ * Large regions can be split into image id ranges read in parallel over a small pool of connections.
+ * Whatever the order rows come in, and whether the region is split or not, the corpus is the same: images sorted by id (as strings),
+ * tag ids in the alphabetical order of the tags.
+ * @author mgarchery
+ */
+public class DatabaseCorpusReader {
+
+    public static int FETCH_SIZE = 10000; // rows fetched per round trip
+    public static boolean AGGREGATE_TAGS = false; // true to fetch one row per image (tags grouped with array_agg)
+    public static int PARTITIONS = 1; // number of image id ranges read in parallel by DistancesMT.corpusFromDatabase, 1 for a single query
+    public static int CONNECTIONS = 4; // size of the connection pool used to read partitions
+
+    private static final String FROM_WHERE =
+            "FROM \n" +
+            "\"Tag\", \n" +
+            "\"imagefiltred\", \n" +
+            "\"imagetagfiltred\"\n" +
+            "WHERE \n" +
+            "  \"imagefiltred\".id = \"imagetagfiltred\".imageid AND\n" +
+            "  \"Tag\".text = \"imagetagfiltred\".tag AND\n" +
+            "  \"Tag\".gettytag = true AND\n" +
+            "  \"imagefiltred\".lat >= ? AND \n" +
+            "  \"imagefiltred\".lat <= ? AND \n" +
+            "  \"imagefiltred\".lon >= ? AND \n" +
+            "  \"imagefiltred\".lon <= ?";
+
+    private static final String ID_RANGE =
+            " AND \n" +
+            "  \"imagefiltred\".id >= ? AND \n" +
+            "  \"imagefiltred\".id < ?";
+
+    /**
+     * Builds the query for one row per image and tag (or one row per image if aggregated), optionally restricted to an id range.
+     * Rows are left unordered, so the server does not sort the whole result before the cursor returns its first rows: the
+     * corpus is renumbered once read (see TagCorpus.Builder.sorted), so it does not depend on the order of the rows.
+     */
+    private static String query(boolean aggregated, boolean idRange) {
+        String where = FROM_WHERE + (idRange ? ID_RANGE : "") + "\n";
+        if (aggregated) {
+            return "SELECT \n" +
+                   "  \"imagefiltred\".id, \n" +
+                   "  array_agg(\"imagetagfiltred\".tag ORDER BY \"imagetagfiltred\".tag) AS tags \n" +
+                   where +
+                   "GROUP BY \"imagefiltred\".id";
+        }
+        return "SELECT \n" +
+               "  \"imagefiltred\".id, \n" +
+               "  \"imagetagfiltred\".tag \n" +
+               where;
+    }
+
+    private static final String ID_BOUNDS_QUERY =
+            "SELECT min(\"imagefiltred\".id), max(\"imagefiltred\".id) \n" +
+            "FROM \"imagefiltred\" \n" +
+            "WHERE \n" +
+            "  \"imagefiltred\".lat >= ? AND \n" +
+            "  \"imagefiltred\".lat <= ? AND \n" +
+            "  \"imagefiltred\".lon >= ? AND \n" +
+            "  \"imagefiltred\".lon <= ?";
+
+    /**
+     * Reads all the images of a bounding box with FETCH_SIZE and AGGREGATE_TAGS
+     * @param c open connection to the database, its autocommit mode is switched off (needed for cursors) and restored
+     * @param minLat minimum latitude
+     * @param maxLat maximum latitude
+     * @param minLon minimum longitude
+     * @param maxLon maximum longitude
+     * @return corpus with all the images of the bounding box
+     * @throws SQLException on database errors
+     */
+    public static TagCorpus read(Connection c, double minLat, double maxLat, double minLon, double maxLon) throws SQLException {
+        return read(c, minLat, maxLat, minLon, maxLon, FETCH_SIZE, AGGREGATE_TAGS);
+    }
+
+    /**
+     * Reads all the images of a bounding box
+     * @param c open connection to the database, its autocommit mode is switched off (needed for cursors) and restored
+     * @param minLat minimum latitude
+     * @param maxLat maximum latitude
+     * @param minLon minimum longitude
+     * @param maxLon maximum longitude
+     * @param fetchSize rows fetched per round trip
+     * @param aggregated true to fetch one row per image with all its tags, false to fetch one row per image and tag
+     * @return corpus with all the images of the bounding box
+     * @throws SQLException on database errors
+     */
+    public static TagCorpus read(Connection c, double minLat, double maxLat, double minLon, double maxLon,
+                                 int fetchSize, boolean aggregated) throws SQLException {
+        TagCorpus.Builder builder = new TagCorpus.Builder();
+        read(c, builder, minLat, maxLat, minLon, maxLon, null, fetchSize, aggregated);
+        return builder.sorted().build();
+    }
+
+    /**
+     * Reads all the images of a bounding box with FETCH_SIZE and AGGREGATE_TAGS, split into id ranges read in parallel,
+     * each one over its own connection of a small pool. The per range corpora are merged and renumbered like the corpus of
+     * a single query: the result is the same as the one of a single query. Image ids (imagefiltred.id) must be numeric.
+     * @param url URL to the database
+     * @param user Username for the database
+     * @param password Password for the database
+     * @param minLat minimum latitude
+     * @param maxLat maximum latitude
+     * @param minLon minimum longitude
+     * @param maxLon maximum longitude
+     * @param partitions number of id ranges
+     * @param connections number of connections (and threads) reading ranges at the same time
+     * @return corpus with all the images of the bounding box
+     * @throws SQLException on database errors
+     */
+    public static TagCorpus read(final String url, final String user, final String password,
+                                 final double minLat, final double maxLat, final double minLon, final double maxLon,
+                                 int partitions, int connections) throws SQLException {
+
+        connections = Math.max(1, Math.min(connections, partitions));
+        final BlockingQueue<Connection> pool = new ArrayBlockingQueue<>(connections);
+        ExecutorService executor = null;
+
+        try {
+            pool.add(DriverManager.getConnection(url, user, password));
+            long[] bounds = idBounds(pool.peek(), minLat, maxLat, minLon, maxLon);
+            if (bounds == null) {
+                return new TagCorpus.Builder().build();
+            }
+            for (int i = 1; i < connections; i++) {
+                pool.add(DriverManager.getConnection(url, user, password));
+            }
+
+            /* Split [min, max] into consecutive ranges [from, to) */
+            long min = bounds[0];
+            long span = bounds[1] - bounds[0] + 1;
+            partitions = (int) Math.max(1, Math.min(partitions, span));
+            final long[] limits = new long[partitions + 1];
+            for (int i = 0; i <= partitions; i++) {
+                limits[i] = min + (long) (span * ((double) i / partitions));
+            }
+            limits[partitions] = bounds[1] + 1;
+
+            executor = Executors.newFixedThreadPool(connections);
+            List<Future<TagCorpus.Builder>> results = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                final long[] range = {limits[i], limits[i + 1]};
+                results.add(executor.submit(new Callable<TagCorpus.Builder>() {
+                    @Override
+                    public TagCorpus.Builder call() throws SQLException, InterruptedException {
+                        TagCorpus.Builder builder = new TagCorpus.Builder();
+                        Connection c = pool.take();
+                        try {
+                            read(c, builder, minLat, maxLat, minLon, maxLon, range, FETCH_SIZE, AGGREGATE_TAGS);
+                        } finally {
+                            pool.put(c);
+                        }
+                        return builder;
+                    }
+                }));
+            }
+
+            TagCorpus.Builder builder = new TagCorpus.Builder();
+            for (Future<TagCorpus.Builder> result : results) {
+                builder.addAll(result.get());
+            }
+            return builder.sorted().build();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reading partitions", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Error while reading partitions", e.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (Connection c : pool) {
+                try { c.close(); } catch (SQLException e) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    /**
+     * Runs the query (restricted to the id range [range[0], range[1]) if range is not null) and feeds the rows into the builder
+     */
+    private static void read(Connection c, TagCorpus.Builder builder, double minLat, double maxLat, double minLon, double maxLon,
+                             long[] range, int fetchSize, boolean aggregated) throws SQLException {
+
+        boolean autoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try (PreparedStatement stmt = c.prepareStatement(query(aggregated, range != null),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(fetchSize);
+            stmt.setDouble(1, minLat);
+            stmt.setDouble(2, maxLat);
+            stmt.setDouble(3, minLon);
+            stmt.setDouble(4, maxLon);
+            if (range != null) {
+                stmt.setLong(5, range[0]);
+                stmt.setLong(6, range[1]);
+            }
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                readRows(rs, builder, aggregated);
+            }
+            c.commit();
+        } catch (SQLException | RuntimeException e) {
+            try {
+                c.rollback();
+            } catch (SQLException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        } finally {
+            c.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return smallest and biggest image ids of the bounding box, null if it contains no image
+     */
+    private static long[] idBounds(Connection c, double minLat, double maxLat, double minLon, double maxLon) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(ID_BOUNDS_QUERY)) {
+            stmt.setDouble(1, minLat);
+            stmt.setDouble(2, maxLat);
+            stmt.setDouble(3, minLon);
+            stmt.setDouble(4, maxLon);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+                return new long[]{min, rs.getLong(2)};
+            }
+        }
+    }
+
+    /**
+     * Feeds all the rows of a result set (id, tag) or (id, tags) into the builder
+     */
+    static void readRows(ResultSet rs, TagCorpus.Builder builder, boolean aggregated) throws SQLException {
+        while (rs.next()) {
+            String id = rs.getString(1);
+
+            if (aggregated) {
+                Array tags = rs.getArray(2);
+                for (Object tag : (Object[]) tags.getArray()) {
+                    builder.addTag(id, (String) tag);
+                }
+                tags.free();
+            } else {
+                builder.addTag(id, rs.getString(2));
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package statsemdistance;
+
+/**
+ * Dense matrix of doubles, as created by a MatrixBackend.
+ * @author mgarchery
+ */
+public interface DenseMatrix {
+
+    /**
+     * @return number of rows
+     */
+    int rows();
+
+    /**
+     * @return number of columns
+     */
+    int columns();
+
+    /**
+     * @return entry (i, j)
+     */
+    double get(int i, int j);
+
+    /**
+     * Sets entry (i, j). Different threads may set different entries at the same time.
+     */
+    void set(int i, int j, double value);
+
+    /**
+     * Gives access to row i without allocating: either an internal array or the buffer filled with the row.
+     * @param i row index
+     * @param buffer array of at least columns() entries, used if the row is not stored as an array of its own
+     * @return array whose entries 0 ... columns() - 1 are row i, must not be modified
+     */
+    double[] row(int i, double[] buffer);
+}
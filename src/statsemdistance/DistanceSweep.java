@@ -0,0 +1,252 @@
+package statsemdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the statistical distance matrixes of a sweep over growing selections of representative tags (as the
+ * tagPercentage loop of StatSemDistance.main does), where every selection extends the previous one (a prefix of the same
+ * ranked list): the same matrixes as DistancesMT.calculcateDistanceMatrix, without computing everything again at every step.
+ *
+ * The histogramm of tag t holds its cooccurrences with the selected tags s, i.e. column s of the cooccurrence matrix
+ * (with the frequency of t when s = t), so histogramm columns are read from the SparseCooccurrence the Laplacian scores
+ * were computed from.
+ * The Jensen-Shannon divergence of tags i < j is (K1 / ln 2 + K2 / ln 2) / 2, K1 and K2 being sums over the columns of
+ * terms of p = h_i and q = h_j: p ln(p / m) and q ln(q / m) (m = (p + q) / 2) if both are non zero, p ln(2) or q ln(2)
+ * if only one is. Both sums are kept for every pair, so a new column only adds its terms to the pairs where it is non
+ * zero on at least one side. The terms are added column after column, in the same order as JensonShanonDivergence
+ * sums them, so distances are exactly the ones of calculcateDistanceMatrix (as long as DivergenceTiles.EXACT_DIVERGENCES
+ * is set, otherwise its dense histogramms can be summed by the SIMD kernel, see Kernels).
+ * Rows of pairs are split into chunks of TILE_ROWS rows on the fork-join pool of Multithreading, every chunk owns its
+ * pairs (i, j > i), adds the new columns and returns the max of its divergences.
+ *
+ * The distance matrix returned by distances() is the same instance at every call, overwritten by the next one.
+ *
+ * Memory: besides the returned distance matrix (n(n+1)/2 entries for n tags, as for calculcateDistanceMatrix), the two sums
+ * of every pair are kept off-heap in two more packed matrixes, i.e. about 1.5 n^2 values instead of 0.5 n^2: 8 n^2
+ * bytes for the sums in doubles. With DistancesMT.SINGLE_PRECISION_DISTANCES the sums are stored as floats (4 n^2 bytes);
+ * they are then rounded after every new column, so distances are close to, but no longer exactly, the ones of
+ * calculcateDistanceMatrix. For more than MAX_SWEEP_TAGS tags no sums are kept at all and every selection is computed
+ * by calculcateDistanceMatrix.
+ *
+ * Normalized histogramms (DistancesMT.NORMALIZE_HISTOGRAMMS) change with every new column and cannot be extended:
+ * matrixes are then computed by calculcateDistanceMatrix.
+ * @author mgarchery
+ */
+public class DistanceSweep implements AutoCloseable {
+
+    public static int TILE_ROWS = 64; // rows of pairs updated by one fork-join task
+    public static int MAX_SWEEP_TAGS = 8192; // corpora with more tags compute every selection by calculcateDistanceMatrix (the sums of 8192 tags take 512 MB off-heap in doubles)
+
+    private final TagCorpus corpus;
+    private final SparseCooccurrence cooccurrences;
+    private final int[] frequencies;
+    private final int size;
+
+    private final List<String> columns = new ArrayList<>(); // selected tags whose terms are in the sums
+    private SymmetricMatrix rowTerms;    // K1 of every pair i < j, entry (i, j)
+    private SymmetricMatrix columnTerms; // K2 of every pair i < j, entry (i, j)
+    private SymmetricMatrix distanceMatrix; // returned by every call of distances()
+
+    /**
+     * @param corpus all the images and their corresponding tags
+     * @param cooccurrences cooccurrence matrix of the corpus, as built for the Laplacian scores
+     * @param frequencies number of images of every tag (see TagCorpus.tagFrequencies)
+     */
+    public DistanceSweep(TagCorpus corpus, SparseCooccurrence cooccurrences, int[] frequencies) {
+        this.corpus = corpus;
+        this.cooccurrences = cooccurrences;
+        this.frequencies = frequencies;
+        this.size = cooccurrences.size();
+    }
+
+    /**
+     * Computes the distance matrix of a selection of representative tags. If the selection extends the one of the previous
+     * call, only its new tags are added to the sums, otherwise they are computed again from the first selected tag.
+     * @param representativeTags selected tags (histogramm columns)
+     * @return symmetric distance matrix, the same as the one of DistancesMT.calculcateDistanceMatrix (see above for single
+     * precision), valid until the next call
+     */
+    public SymmetricMatrix distances(List<String> representativeTags) {
+        if (DistancesMT.NORMALIZE_HISTOGRAMMS || size > MAX_SWEEP_TAGS) {
+            close(distanceMatrix);
+            distanceMatrix = DistancesMT.calculcateDistanceMatrix(corpus.tagsWithIds(), corpus, new ArrayList<>(representativeTags), "");
+            return distanceMatrix;
+        }
+
+        if (rowTerms == null || rowTerms.isSinglePrecision() != DistancesMT.SINGLE_PRECISION_DISTANCES
+                || representativeTags.size() < columns.size()
+                || !representativeTags.subList(0, columns.size()).equals(columns)) {
+            close(rowTerms);
+            close(columnTerms);
+            rowTerms = new SymmetricMatrix(size, DistancesMT.SINGLE_PRECISION_DISTANCES);
+            columnTerms = new SymmetricMatrix(size, DistancesMT.SINGLE_PRECISION_DISTANCES);
+            columns.clear();
+        }
+        if (distanceMatrix == null || distanceMatrix.isSinglePrecision() != DistancesMT.SINGLE_PRECISION_DISTANCES) {
+            close(distanceMatrix);
+            distanceMatrix = new SymmetricMatrix(size, DistancesMT.SINGLE_PRECISION_DISTANCES);
+        }
+
+        /* non zero entries of the new histogramm columns */
+        int added = representativeTags.size() - columns.size();
+        int[][] ids = new int[added][];
+        double[][] values = new double[added][];
+        for (int c = 0; c < added; c++) {
+            column(corpus.id(representativeTags.get(columns.size() + c)), c, ids, values);
+        }
+        columns.addAll(representativeTags.subList(columns.size(), representativeTags.size()));
+
+        double max = size == 0 ? 0.0 : Multithreading.getForkJoinPool().invoke(new RowsTask(0, size, ids, values, distanceMatrix));
+        DistancesMT.normalizeDistanceMatrix(distanceMatrix, max);
+        return distanceMatrix;
+    }
+
+    /**
+     * Frees the off-heap matrixes of the sweep (sums and returned distance matrix), see SymmetricMatrix.close()
+     */
+    @Override
+    public void close() {
+        close(rowTerms);
+        close(columnTerms);
+        close(distanceMatrix);
+        rowTerms = null;
+        columnTerms = null;
+        distanceMatrix = null;
+        columns.clear();
+    }
+
+    private static void close(SymmetricMatrix matrix) {
+        if (matrix != null) {
+            matrix.close();
+        }
+    }
+
+    /**
+     * Stores the non zero entries of the histogramm column of tag s (by ascending tag id) at index c
+     */
+    private void column(int s, int c, int[][] ids, double[][] values) {
+        if (s < 0 || s >= size) {
+            ids[c] = new int[0];
+            values[c] = new double[0];
+            return;
+        }
+        int[] offsets = cooccurrences.offsets();
+        int[] tags = cooccurrences.columns();
+        int[] counts = cooccurrences.values();
+        int from = offsets[s], to = offsets[s + 1];
+
+        ids[c] = new int[to - from + 1];
+        values[c] = new double[to - from + 1];
+        int count = 0;
+        boolean diagonal = frequencies[s] == 0;
+        for (int a = from; a < to; a++) {
+            if (!diagonal && tags[a] > s) {
+                ids[c][count] = s;
+                values[c][count++] = frequencies[s];
+                diagonal = true;
+            }
+            ids[c][count] = tags[a];
+            values[c][count++] = counts[a];
+        }
+        if (!diagonal) {
+            ids[c][count] = s;
+            values[c][count++] = frequencies[s];
+        }
+        ids[c] = Arrays.copyOf(ids[c], count);
+        values[c] = Arrays.copyOf(values[c], count);
+    }
+
+    /**
+     * Adds the new columns to the pairs of the rows from (inclusive) to to (exclusive) and sets their divergences
+     */
+    private class RowsTask extends RecursiveTask<Double> {
+
+        private final int from;
+        private final int to;
+        private final int[][] ids;
+        private final double[][] values;
+        private final SymmetricMatrix distanceMatrix;
+
+        RowsTask(int from, int to, int[][] ids, double[][] values, SymmetricMatrix distanceMatrix) {
+            this.from = from;
+            this.to = to;
+            this.ids = ids;
+            this.values = values;
+            this.distanceMatrix = distanceMatrix;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from > TILE_ROWS) {
+                int middle = (from + to) >>> 1;
+                RowsTask left = new RowsTask(from, middle, ids, values, distanceMatrix);
+                left.fork();
+                double max = new RowsTask(middle, to, ids, values, distanceMatrix).compute();
+                double leftMax = left.join();
+                return leftMax > max ? leftMax : max;
+            }
+
+            double max = 0.0;
+            for (int i = from; i < to; i++) {
+                for (int c = 0; c < ids.length; c++) {
+                    addColumn(i, ids[c], values[c]);
+                }
+                distanceMatrix.set(i, i, 0.0); // the matrix is reused, the last normalization may have left 0/0 there
+                for (int j = i + 1; j < size; j++) {
+                    double distance = (rowTerms.get(i, j) / JensonShanonDivergence.log2
+                            + columnTerms.get(i, j) / JensonShanonDivergence.log2) / 2;
+                    distanceMatrix.set(i, j, distance);
+                    if (distance > max) {
+                        max = distance;
+                    }
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Adds the terms of one histogramm column (non zero entries ids / values) to the pairs (i, j > i)
+     */
+    private void addColumn(int i, int[] ids, double[] values) {
+        int next = firstAbove(ids, i);
+        double p = next > 0 && ids[next - 1] == i ? values[next - 1] : 0;
+
+        if (p != 0) {
+            for (int j = i + 1; j < size; j++) {
+                if (next < ids.length && ids[next] == j) {
+                    double q = values[next++];
+                    double m = (p + q)/2;
+                    rowTerms.set(i, j, rowTerms.get(i, j) + p * Math.log( p / m ));
+                    columnTerms.set(i, j, columnTerms.get(i, j) + q * Math.log( q / m ));
+                } else {
+                    rowTerms.set(i, j, rowTerms.get(i, j) + p * JensonShanonDivergence.log2);
+                }
+            }
+        } else {
+            for (; next < ids.length; next++) {
+                int j = ids[next];
+                columnTerms.set(i, j, columnTerms.get(i, j) + values[next] * JensonShanonDivergence.log2);
+            }
+        }
+    }
+
+    /**
+     * @return first position p with ids[p] > i (ids.length if there is none), ids being sorted
+     */
+    private static int firstAbove(int[] ids, int i) {
+        int low = 0, high = ids.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids[middle] <= i) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
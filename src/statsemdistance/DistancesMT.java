@@ -1,8 +1,8 @@
 package statsemdistance;/* Database connection */
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.sql.DriverManager;
-import treegenerator.services.Inflector;
 
 /* Collections */
 import java.util.*;
@@ -20,8 +20,11 @@ public class DistancesMT {
     public static int REFERENCE_TAG_PERCENTAGE = 10;
     public static int PRINT = 0; // Set to 0 to not print any additional information, 1 to print the progress of the programm
     public static int TEST_POOL_SIZE_DIVISION = 1; // Reduce the size of the test set by setting a higher number; 1 indicating actual size
-   
-    public static Map<Integer, ArrayList> histogramms = new HashMap();
+    public static boolean PARALLEL_COUNTING = false; // Count tag occurrences on the fork-join pool (worth it for very large corpora only)
+    public static boolean WRITE_SNAPSHOTS = false; // Write a binary snapshot (see CorpusSnapshot) of every corpus read from a file or the database, in the /files folder
+    public static boolean SINGLE_PRECISION_DISTANCES = false; // Store the statistical and semantic distance matrixes (see SymmetricMatrix) as floats instead of doubles
+    public static boolean NAME_ORDERED_EVALUATION = false; // Break kNN ties and pick the direction of asymmetric semantic distances by tag name instead of tag id: scores do not depend on how ids were assigned, but differ from the id ordered ones
+    public static boolean NORMALIZE_HISTOGRAMMS = false; // Divide every histogramm by its total (probability distributions) before the Jenson-Shanon-Divergence, false keeps the raw cooccurrence counts
     
     /**
      * Establishes a database connection (to a postgres database) and saves all image ids and their corresponding tags to a map (string => string list).
@@ -33,71 +36,70 @@ public class DistancesMT {
      * @return void
      */
     public static Map mapFromDatabase(String url, String user, String password) {
+        return corpusFromDatabase(url, user, password).toMap();
+    }
+
+    /**
+     * Establishes a database connection (to a postgres database) and streams all image ids and their corresponding tags
+     * of the default bounding box (lat 50 to 55, lon 5 to 15) into a corpus.
+     *
+     * @param url      URL to the database
+     * @param user     Username for the database
+     * @param password Password for the database
+     * @return corpus with all the images and their tags
+     */
+    public static TagCorpus corpusFromDatabase(String url, String user, String password) {
+        return corpusFromDatabase(url, user, password, 50, 55, 5, 15);
+    }
+
+    /**
+     * Establishes a database connection (to a postgres database) and streams all image ids and their corresponding tags
+     * of a bounding box into a corpus (see DatabaseCorpusReader for fetch size and aggregation settings).
+     * If WRITE_SNAPSHOTS is set, the corpus is also written to the snapshot database_minLat_maxLat_minLon_maxLon.snapshot
+     * (read it back with corpusFromSnapshot).
+     *
+     * @param url      URL to the database
+     * @param user     Username for the database
+     * @param password Password for the database
+     * @param minLat   minimum latitude
+     * @param maxLat   maximum latitude
+     * @param minLon   minimum longitude
+     * @param maxLon   maximum longitude
+     * @return corpus with all the images and their tags
+     */
+    public static TagCorpus corpusFromDatabase(String url, String user, String password, double minLat, double maxLat, double minLon, double maxLon) {
 
         Connection c = null;
-        Statement stmt = null;
-        Map imagesTags = new HashMap();
+        TagCorpus corpus = null;
 
         try {
-            /* Connect to database */
             Class.forName("org.postgresql.Driver");
-            c = DriverManager.getConnection(url, user, password);
-            c.setAutoCommit(false);
 
-            /* Successful! */
-            if(PRINT == 1)
-            System.out.println("Database connection successful. Creating map...\n");
-
-            /* Read images (their ids) and their tags from the database and saves them to a map */
-            stmt = c.createStatement();
-            String theQuery = "SELECT \n" +
-                    "  \"imagefiltred\".id, \n" +
-                    "  \"imagetagfiltred\".tag \n" +
-                    "FROM \n" +
-                    "\"Tag\", \n" +
-                    "\"imagefiltred\", \n" +
-                    "\"imagetagfiltred\"\n" +
-                    "WHERE \n" +
-                    "  \"imagefiltred\".id = \"imagetagfiltred\".imageid AND\n" +
-                    "  \"Tag\".text = \"imagetagfiltred\".tag AND\n" +
-                    "  \"Tag\".gettytag = true AND\n" +
-                    "  \"imagefiltred\".lat >= 50 AND \n" +
-                    "  \"imagefiltred\".lat <= 55 AND \n" +
-                    "  \"imagefiltred\".lon >= 5 AND \n" +
-                    "  \"imagefiltred\".lon <= 15";
-            ResultSet rs = stmt.executeQuery( theQuery );
-
-            /* Write into the Map */
-            while (rs.next()) {
-                String id = rs.getString("id");
-                String tag = rs.getString("tag");
-
-                /* If the Map doesn't already contain the key */
-                if (!imagesTags.containsKey(id)) {
-                    /* add the key and create internal list */
-                    imagesTags.put(id, new ArrayList());
-
-                    /* add the first tag to the internal list */
-                    List internal = (ArrayList) imagesTags.get(id);
-                    internal.add(tag);
-                } else {
-                    /* Key already exists for the image; Search for tag in the internal list and add it */
-                    List internal = (ArrayList) imagesTags.get(id);
-                    if (!(internal.contains(tag))) {
-                        internal.add(tag);
-                    }
-                }
+            if (DatabaseCorpusReader.PARTITIONS > 1) {
+                /* Read id ranges in parallel, each over its own connection */
+                corpus = DatabaseCorpusReader.read(url, user, password, minLat, maxLat, minLon, maxLon,
+                        DatabaseCorpusReader.PARTITIONS, DatabaseCorpusReader.CONNECTIONS);
+            } else {
+                /* Connect to database */
+                c = DriverManager.getConnection(url, user, password);
+
+                /* Successful! */
+                if(PRINT == 1)
+                System.out.println("Database connection successful. Creating map...\n");
+
+                /* Read images (their ids) and their tags from the database */
+                corpus = DatabaseCorpusReader.read(c, minLat, maxLat, minLon, maxLon);
+
+                /* close connection */
+                c.close();
             }
 
             if(PRINT == 1)
             System.out.println("The map was successfully created.\n");
 
-            /* close reading */
-            rs.close();
-            stmt.close();
-
-            /* close connection */
-            c.close();
+            if (WRITE_SNAPSHOTS) {
+                writeSnapshot(corpus, "database_" + minLat + "_" + maxLat + "_" + minLon + "_" + maxLon, -1, 0);
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -105,13 +107,16 @@ public class DistancesMT {
             System.exit(0);
         }
 
-        return imagesTags;
+        return corpus;
 
     }
 
     /**
      * Creates a map vom the information giving in a *.cvs file located in the /res folder (string => string list), using the first cell of a row as
      * identifier. If a file can't be read, make sure that you are using the right path.
+     * The file is read as UTF-8 and blank lines are skipped, like CsvCorpusReader does.
+     * If WRITE_SNAPSHOTS is set, the images are also written (as TagCorpus.fromMap orders them) to the snapshot fileName.snapshot,
+     * once the whole file has been read.
      *
      * @param fileName      Input path for *.cvs file
      * @return Map
@@ -127,18 +132,26 @@ public class DistancesMT {
         String line;
         String split = ",";
 
+        TagSingularizer.loadCache();
+        boolean complete = false;
+
         try {
 
-            br = new BufferedReader(new FileReader(filepath));
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(filepath), StandardCharsets.UTF_8));
             while ((line = br.readLine()) != null) {
 
                 /* Create an array with the strings of every line */
                 String[] words = line.split(split);
 
-                for(int i = 0; i < words.length; i++) {
-                    words[i] = words[i].replace(" \"", "").replace("\"", "");
-                    //singularize tags to match later in semantic distance matrix
-                    words[i] = Inflector.getInstance().singularize(words[i]);
+                /* blank line (no non empty cell) */
+                if (words.length == 0 || (words.length == 1 && words[0].isEmpty())) {
+                    continue;
+                }
+
+                /* image id is not singularized */
+                words[0] = cleanCell(words[0]);
+                for(int i = 1; i < words.length; i++) {
+                    words[i] = cleanTag(words[i]);
                 }
                 
                 
@@ -154,6 +167,7 @@ public class DistancesMT {
                     internal.add(words[i]);
                 }
             }
+            complete = true;
 
         } catch (FileNotFoundException e) { e.printStackTrace();
         } catch (IOException e) { e.printStackTrace();
@@ -165,10 +179,110 @@ public class DistancesMT {
 
         }
 
+        TagSingularizer.saveCache();
+        /* a partly read file must not be loaded instead of the file by later runs */
+        if (WRITE_SNAPSHOTS && complete) {
+            writeSnapshot(TagCorpus.fromMap(imagesTags), fileName, new File(filepath).length(), FILE_READER_FLAGS);
+        }
         System.out.println("Reading done");
         return imagesTags;
     }
 
+    /**
+     * Reads a *.cvs file located in the /files folder directly into a corpus (memory mapped and parsed in parallel chunks, see
+     * CsvCorpusReader), using the first cell of a row as identifier. Images and tag ids are in the order of
+     * TagCorpus.fromMap(imageTagsFromFile(fileName)).
+     * If the snapshot fileName.snapshot exists, is newer than the file and was written for a file of the same length read
+     * with the same cleaning steps (see CorpusSnapshot), the corpus is read from the snapshot instead,
+     * otherwise it is written if WRITE_SNAPSHOTS is set.
+     *
+     * @param fileName      Input path for *.cvs file
+     * @return corpus with all the images of the file (empty if the file can't be read)
+     */
+    public static TagCorpus corpusFromFile(String fileName) {
+        TagCorpus corpus;
+
+        /* Set path to file */
+        String filepath = System.getProperty("user.dir");
+        filepath = filepath + "/files/" + fileName;
+        File file = new File(filepath);
+
+        File snapshot = snapshotFile(fileName);
+        if (snapshot.exists() && snapshot.lastModified() >= file.lastModified()) {
+            try {
+                corpus = CorpusSnapshot.read(snapshot, file.length(), FILE_READER_FLAGS);
+                System.out.println("Reading done (snapshot)");
+                return corpus;
+            } catch (IOException e) {
+                /* outdated or broken snapshot, parse the file again */
+                System.err.println(e.getMessage());
+            }
+        }
+
+        TagSingularizer.loadCache();
+        try {
+            corpus = CsvCorpusReader.read(file, Multithreading.PARALLELISM);
+            if (WRITE_SNAPSHOTS) {
+                writeSnapshot(corpus, fileName, file.length(), FILE_READER_FLAGS);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            corpus = new TagCorpus.Builder().build();
+        }
+        TagSingularizer.saveCache();
+
+        System.out.println("Reading done");
+        return corpus;
+    }
+
+    /**
+     * Reads a corpus back from a snapshot located in the /files folder, as written by corpusFromFile, imageTagsFromFile
+     * or corpusFromDatabase
+     *
+     * @param name      name of the snapshot, without the .snapshot extension (e.g. the name of the *.csv file)
+     * @return the corpus
+     * @throws IOException if the snapshot cannot be read
+     */
+    public static TagCorpus corpusFromSnapshot(String name) throws IOException {
+        return CorpusSnapshot.read(snapshotFile(name));
+    }
+
+    /* cleaning steps of the file readers (cleanCell, cleanTag), checked against the snapshot header */
+    private static final int FILE_READER_FLAGS = CorpusSnapshot.CLEANED_CELLS | CorpusSnapshot.SINGULARIZED_TAGS;
+
+    private static File snapshotFile(String name) {
+        return new File(System.getProperty("user.dir") + "/files/" + name + ".snapshot");
+    }
+
+    private static void writeSnapshot(TagCorpus corpus, String name, long sourceLength, int flags) {
+        try {
+            CorpusSnapshot.write(corpus, snapshotFile(name), sourceLength, flags);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the quotes around a cell of a *.cvs file and singularizes it (through the cache of TagSingularizer)
+     *
+     * @param word cell content
+     * @return the tag
+     */
+    static String cleanTag(String word) {
+        //singularize tags to match later in semantic distance matrix
+        return TagSingularizer.singularize(cleanCell(word));
+    }
+
+    /**
+     * Removes the quotes around a cell of a *.cvs file
+     *
+     * @param word cell content
+     * @return the cell without quotes
+     */
+    static String cleanCell(String word) {
+        return word.replace(" \"", "").replace("\"", "");
+    }
+
     /**
      * Prints the contents of a map to the console.
      *
@@ -226,49 +340,30 @@ public class DistancesMT {
      * @return void
      */
     public static Map countOccurrences(Map imagesTags) {
+        return countOccurrences(TagCorpus.fromMap(imagesTags));
+    }
 
-        if(PRINT == 1)
-        System.out.println("Creating tagpool and counting occurrences...\n");
-
-        Map tagpool = new HashMap();
-
-        /* Iterate through the map */
-        Iterator itMap = imagesTags.entrySet().iterator();
-
-        while (itMap.hasNext()) {
-            Map.Entry pairFromMap = (Map.Entry) itMap.next();
-
-             /* Select the list of tags in the pair (ArrayList) */
-            ArrayList tagList = (ArrayList) pairFromMap.getValue();
-
-            /* Iterate through that list and add to the tagpool with value 0 (counts) */
-            for (String s : (ArrayList<String>) tagList) {
-                /* If it doesn't already include the tag... */
-                if (!(tagpool.containsKey(s))) {
-
-                    tagpool.put(s, 0);
-
-                    /* For every tag count through imagesTags, find each list and look for the search-tag, is it there: +1 in alltags */
-                    Iterator countTags = imagesTags.entrySet().iterator();
+    /**
+     * Counts all the occurrences of each tag of the corpus
+     *
+     * @param corpus all the images and their corresponding tags
+     * @return Map tag => number of images tagged with it
+     */
+    public static Map<String,Integer> countOccurrences(TagCorpus corpus) {
 
-                    while (countTags.hasNext()) {
-                        Map.Entry countPair = (Map.Entry) countTags.next();
+        if(PRINT == 1)
+        System.out.println("Counting occurrences...\n");
 
-                        /* Find list in element */
-                        ArrayList<String> arrayTags = (ArrayList<String>)countPair.getValue();
+        /* One pass over the corpus, counts indexed by tag id */
+        int[] frequencies = corpus.tagFrequencies(PARALLEL_COUNTING);
 
-                        /* Is search in there? */
-                        if(arrayTags.contains(s)) {
-                            /* increment value by one in ALLTAGS */
-                            tagpool.put(s, (Integer)tagpool.get(s) + 1);
-                        }
-                    }
-                }
-            }
+        Map<String,Integer> tagpool = new HashMap<>(frequencies.length * 2);
+        for (int tag = 0; tag < frequencies.length; tag++) {
+            tagpool.put(corpus.tag(tag), frequencies[tag]);
         }
 
         if(PRINT == 1)
-        System.out.println("Created tagpool, counting successful.\n");
+        System.out.println("Counting successful.\n");
 
         return tagpool;
     }
@@ -339,15 +434,22 @@ public class DistancesMT {
      * @return ArrayList
      */
     public static Map getMostFrequentTags(Map imagesTags) {
+        return getMostFrequentTags(TagCorpus.fromMap(imagesTags));
+    }
 
-        ArrayList representativeTags = new ArrayList<String>();
+    /**
+     * Sorts all the tags of the corpus by descending number of occurrences
+     * @param corpus all the images and their corresponding tags
+     * @return Map tag => count, sorted by descending count
+     */
+    public static Map getMostFrequentTags(TagCorpus corpus) {
 
         /*
             1. Create Map "alltags" tag => count (0)
             2. Count all occurrences and add to tag pool
             3. Choose "int count" REFERENCE_TAG_PERCENTAGE, minimum MIN_REFERENCE_TAG_COUNT
         */
-        Map alltags = countOccurrences(imagesTags);
+        Map alltags = countOccurrences(corpus);
 
         if(PRINT == 1)
         System.out.println("Getting most representative tags...");
@@ -361,6 +463,16 @@ public class DistancesMT {
     }
     
      public static Map getMostFrequentTagsWithShifting(Map imagesTags, int shiftingPercentage) {
+        return getMostFrequentTagsWithShifting(TagCorpus.fromMap(imagesTags), shiftingPercentage);
+     }
+
+     /**
+      * Sorts all the tags of the corpus by descending number of occurrences, skipping the shiftingPercentage most frequent ones
+      * @param corpus all the images and their corresponding tags
+      * @param shiftingPercentage percentage of most frequent tags to skip
+      * @return Map tag => count
+      */
+     public static Map getMostFrequentTagsWithShifting(TagCorpus corpus, int shiftingPercentage) {
 
         Map representativeTags = new HashMap<String,Integer>();
         Map skippedFrequentTags = new HashMap<String,Integer>();
@@ -370,7 +482,7 @@ public class DistancesMT {
             2. Count all occurrences and add to tag pool
             3. Choose "int count" REFERENCE_TAG_PERCENTAGE, minimum MIN_REFERENCE_TAG_COUNT
         */
-        Map alltags = countOccurrences(imagesTags);
+        Map alltags = countOccurrences(corpus);
 
         if(PRINT == 1)
             System.out.println("Getting most representative tags...");
@@ -429,6 +541,34 @@ public class DistancesMT {
         return cooccurrence;
     }
 
+    /**
+     * Counts the coocurrence of term1 and term2 in the corpus
+     * @param term
+     * @param term2
+     * @param corpus all the images and their corresponding tags
+     * @return int
+     */
+    public static int cooccurrenceBetweenTerms(String term, String term2, TagCorpus corpus) {
+        int id = corpus.id(term);
+        int id2 = corpus.id(term2);
+        if (id < 0 || id2 < 0) {
+            return 0;
+        }
+        return cooccurrenceBetweenTerms(id, id2, corpus);
+    }
+
+    /**
+     * Counts the coocurrence of the tags with ids id and id2 in the corpus
+     * @param id
+     * @param id2
+     * @param corpus all the images and their corresponding tags
+     * @return number of images tagged with both tags
+     */
+    public static int cooccurrenceBetweenTerms(int id, int id2, TagCorpus corpus) {
+        /* Intersection of the postings lists of both tags */
+        return corpus.postings().cooccurrence(id, id2);
+    }
+
     /**
      * Creates a histogramm in counting, how often a term is used in the same photo in imagesTags with each of the frequent terms
      * (For a histogramm, take both the array frequent terms and the array with the count)
@@ -457,6 +597,34 @@ public class DistancesMT {
         return cooccurrences;
     }
 
+    /**
+     * Creates a histogramm in counting, how often a term is used in the same photo of the corpus with each of the frequent terms
+     * @param term Term for which the histogramm is supposed to be calculated
+     * @param representativeTags Most frequent terms as calculcated by (String values) @getRepresentativeTags
+     * @param corpus all the images and their corresponding tags
+     * @return ArrayList<Integer>
+     */
+    public static ArrayList<Integer> calculateCooccurrences(String term, ArrayList<String> representativeTags, TagCorpus corpus) {
+        ArrayList<Integer> cooccurrences = new ArrayList<>(representativeTags.size());
+        int id = corpus.id(term);
+
+        /* Go through frequentTerms and get every single term */
+        for (String term2 : representativeTags) {
+            int id2 = corpus.id(term2);
+            cooccurrences.add(id < 0 || id2 < 0 ? 0 : cooccurrenceBetweenTerms(id, id2, corpus));
+        }
+
+        if(PRINT == 1) {
+
+            System.out.println("The term \"" + term + "\" is used simultaneously as follows:");
+            for (int i = 0; i < representativeTags.size(); i++) {
+                System.out.println(cooccurrences.get(i) + " times with the term \"" + representativeTags.get(i) + "\"");
+            }
+
+        }
+        return cooccurrences;
+    }
+
     /**
      * Calculates the divergence of two histogramms created by calculateCooccurences according to the Jenson-Shanon Divergence.
      * @param histogramm1
@@ -492,12 +660,23 @@ public class DistancesMT {
      * @param tagsWithIds
      * @param imagesTags
      * @param representativeTags
-     * @return double[][]
+     * @return symmetric distance matrix
+     */
+    public static SymmetricMatrix calculcateDistanceMatrix(Map<Integer,String> tagsWithIds, Map imagesTags, ArrayList<String> representativeTags, String filename) {
+        return calculcateDistanceMatrix(tagsWithIds, TagCorpus.fromMap(imagesTags), representativeTags, filename);
+    }
+
+    /**
+     * Calculates a distance matrix for each tag of the corpus and its representative tags (with the help of the Janson-Shanon-Divergence).
+     * @param tagsWithIds
+     * @param corpus
+     * @param representativeTags
+     * @return symmetric distance matrix
      */
-    public static double[][] calculcateDistanceMatrix(Map<Integer,String> tagsWithIds, Map imagesTags, ArrayList<String> representativeTags, String filename) {
+    public static SymmetricMatrix calculcateDistanceMatrix(Map<Integer,String> tagsWithIds, TagCorpus corpus, ArrayList<String> representativeTags, String filename) {
         
         int tagsCount = tagsWithIds.size();
-        double[][] distanceMatrix = new double[tagsCount][tagsCount];
+        SymmetricMatrix distanceMatrix = new SymmetricMatrix(tagsCount, SINGLE_PRECISION_DISTANCES);
         
         /* Multithreading */
         ImageSignatureThreadPoolExecutor executor = Multithreading.initializeQueueAndGetExecutor(tagsCount);
@@ -505,9 +684,10 @@ public class DistancesMT {
         if(PRINT == 1)
             System.out.println("Starting multithreaded histogramms calculation...");
 
-        /* Calculate a map with the tags and their corresponding histogramm, see global variable histogramms */
+        /* Calculate the histogramm of every tag, as primitive rows indexed by tag id */
+        double[][] histogramms = new double[tagsCount][];
         for (Integer i : tagsWithIds.keySet()) {
-            executor.execute(new CoocurrenceHistogramm(i, tagsWithIds.get(i), imagesTags, representativeTags));
+            executor.execute(new CoocurrenceHistogramm(i, tagsWithIds.get(i), corpus, representativeTags, histogramms));
         }
         Multithreading.waitForExecutionEnd();
         
@@ -515,54 +695,41 @@ public class DistancesMT {
             System.out.println("Multithreaded histogramms calculation done!");
         /* Multithreading ends */
         
-        //get max for normalization
-        double max = 0.0;
+        /* Jenson-Shanon-Divergence of each pair of histogramms, by tiles on the fork-join pool, and max for normalization */
+        double max = DivergenceTiles.computeDivergences(histogramms, distanceMatrix);
+
+        normalizeDistanceMatrix(distanceMatrix, max);
         
-        /* Go through those histogramms and calculate Jenson-Shanon-Divergence for each pair */
-        for (int i = 0; i < tagsCount; i++) {
-            for (int j = i ; j < tagsCount; j++) {
-                try {
-                    /* distance of a tag with itself is always 0*/
-                    if(i == j){
-                        distanceMatrix[i][i] = 0.0;
-                    }else{
-                        double distance = divergenceOfHistogrammes(histogramms.get(i), histogramms.get(j));
-                        distanceMatrix[i][j] = distance;
-                        distanceMatrix[j][i] = distance;
-                        if(distance > max){
-                            max  = distance;
-                        }
-                    } 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    System.out.println("i:" + i + "; i2:" + j + "; amountTags/TEST_POOL_SIZE_DIVISION :" + tagsCount);
-                    System.exit(-1); 
-                }
+        System.out.println("");
+        //writeDistanceMatrixIntoFile(distanceMatrix, tagsWithIds, filename + "_statDistances.csv");
 
-            }
-        }
+        return distanceMatrix;
 
-        /*normalize and correct matrix (distance between cannot be 0 if tags are not equal! */
+    }
+
+    /**
+     * Corrects and normalizes a matrix of divergences: the distance between two different tags cannot be 0, such
+     * distances are set to the max, then all distances are divided by the max.
+     * @param distanceMatrix the divergences, replaced by the normalized distances
+     * @param max the largest divergence
+     */
+    public static void normalizeDistanceMatrix(SymmetricMatrix distanceMatrix, double max) {
+        
+        int tagsCount = distanceMatrix.size();
         for(int i = 0; i < tagsCount; i++){
             for(int j = i; j < tagsCount; j++){
                 
+                double distance = distanceMatrix.get(i, j);
+                
                 //correct matrix
-                if(distanceMatrix[i][j] == 0.0 && i!=j){
-                    distanceMatrix[i][j] = max;
-                    distanceMatrix[j][i] = max;
+                if(distance == 0.0 && i!=j){
+                    distance = max;
                 }
                 
                 //normalize
-                distanceMatrix[i][j] /= max;
-                distanceMatrix[j][i] /= max;   
+                distanceMatrix.set(i, j, distance / max);
             }          
         }
-        
-        System.out.println("");
-        //writeDistanceMatrixIntoFile(distanceMatrix, tagsWithIds, filename + "_statDistances.csv");
-
-        return distanceMatrix;
-
     }
 
     /**
@@ -570,7 +737,7 @@ public class DistancesMT {
      * @param theMatrix A matrix returned by calculcateDistanceMatrix
      * @return int
      */
-    public static int writeDistanceMatrixIntoFile(double[][] theMatrix, Map<Integer,String> tagsWithIds, String filename) {
+    public static int writeDistanceMatrixIntoFile(DenseMatrix theMatrix, Map<Integer,String> tagsWithIds, String filename) {
 
         try {
 
@@ -582,7 +749,8 @@ public class DistancesMT {
             PrintWriter writer = new PrintWriter(filepath + filename);
             writer.print(" ;");
             
-                int size = theMatrix.length;
+                int size = theMatrix.rows();
+                double[] row = new double[size];
                 //write header
                 for (int i = 0; i < size; i++) {
                     writer.append(tagsWithIds.get(i)+ "; ");
@@ -593,8 +761,9 @@ public class DistancesMT {
                 for (int i = 0; i < size; i++) {
                     writer.append(tagsWithIds.get(i)+ "; ");
                     
+                    double[] distances = theMatrix.row(i, row);
                     for (int j = 0; j < size; j++) {
-                        writer.append(String.format( "%.6f", theMatrix[i][j]) + "; ");
+                        writer.append(String.format( "%.6f", distances[j]) + "; ");
 
                     }
                     writer.append("\n");
@@ -614,14 +783,14 @@ public class DistancesMT {
      * Prints a distance matrix calculated by the calculate distance calculcateDistanceMatrix function.
      * @param theMatrix A matrix returned by calculcateDistanceMatrix
      */
-    public static void printDistanceMatrix(double[][] theMatrix) {
+    public static void printDistanceMatrix(DenseMatrix theMatrix) {
 
-        int size = theMatrix.length;
+        int size = theMatrix.rows();
         for (int j = 0; j < size; j++) {
             System.out.print(j + ", ");
 
             for (int i = 0; i < size; i++) {
-                System.out.print(theMatrix[i][j] + ", ");
+                System.out.print(theMatrix.get(i, j) + ", ");
             }
 
             System.out.println("");
@@ -635,7 +804,21 @@ public class DistancesMT {
      * @param commonTags empty list expected as input, common tags between file and already known tags as output
      * @return semantic distance matrix
      */
-    public static double[][] getSemanticDistancesFromFile(String filename, Map<Integer,String> tagsWithIds, List<Integer> commonTags){
+    public static SymmetricMatrix getSemanticDistancesFromFile(String filename, Map<Integer,String> tagsWithIds, List<Integer> commonTags){
+        return getSemanticDistancesFromFile(filename, TagDictionary.fromIds(tagsWithIds), commonTags);
+    }
+
+    /**
+     * reads a semantic distance matrix from csv file
+     * The matrix is stored symmetric, but the file is not always: of the two distances of a pair of tags, the one in the row
+     * of the tag with the lower id is read (the one the nearest terms search always used), or the one in the row of the tag
+     * that comes first by name if NAME_ORDERED_EVALUATION is set
+     * @param filename path of matrix file
+     * @param dictionary tags indexes
+     * @param commonTags empty list expected as input, common tags between file and already known tags as output
+     * @return semantic distance matrix
+     */
+    public static SymmetricMatrix getSemanticDistancesFromFile(String filename, TagDictionary dictionary, List<Integer> commonTags){
 
         String filepath = System.getProperty("user.dir");
         filepath = filepath + "/files/" + filename;
@@ -644,15 +827,10 @@ public class DistancesMT {
         String line;
         String split = ",";
         String[] header = null;
+        int[] headerIds = new int[0];
         int semanticDistancesCount = 0;
         
-        double[][] semanticDistances = new double [tagsWithIds.size()][tagsWithIds.size()];
-        Map<String,Integer> tagsToIndices = new HashMap<>();
-        
-        for(Integer i : tagsWithIds.keySet()){
-            tagsToIndices.put(tagsWithIds.get(i), i);
-        }
-        
+        SymmetricMatrix semanticDistances = new SymmetricMatrix(dictionary.size(), SINGLE_PRECISION_DISTANCES);
         
         try {
 
@@ -661,13 +839,17 @@ public class DistancesMT {
             if((line = br.readLine()) != null){
                 header = line.split(split);
                 
-                for(String tag : header){
-                    tag = tag.trim();
-                    if(!tagsWithIds.containsValue(tag)){
+                /* resolve header tags to their ids once */
+                headerIds = new int[header.length];
+                for(int jSem = 0; jSem < header.length; jSem++){
+                    String tag = header[jSem].trim();
+                    int id = dictionary.id(tag);
+                    if(id < 0){
                        ignoredTags.add(tag); 
                     }else{
-                        commonTags.add(tagsToIndices.get(tag));
+                        commonTags.add(id);
                     }
+                    headerIds[jSem] = tag.isEmpty() ? -1 : id;
                 }
                 
                 System.out.println("Found " + commonTags.size() + " common tags between statistical and semantic distance matrixes");
@@ -694,21 +876,22 @@ public class DistancesMT {
                 String iTag = words[0];
                 
                 
-                if(tagsToIndices.containsKey(iTag)){
-                    int iStat = tagsToIndices.get(iTag);
+                int iStat = dictionary.id(iTag);
+                if(iStat >= 0){
                     
                     for(int jSem = 1; jSem < words.length; jSem++){
-                        String jTag = header[jSem].trim();
-                        if(!jTag.isEmpty() && tagsToIndices.containsKey(jTag)){
-                            int jStat = tagsToIndices.get(jTag);
+                        int jStat = headerIds[jSem];
+                        if(jStat >= 0){
                             if(jStat == iStat){
-                                semanticDistances[iStat][jStat] = 0.0;
+                                semanticDistances.set(iStat, jStat, 0.0);
                             }else{
                                 double similarity = Double.parseDouble(words[jSem]);
-                                if(similarity == -1.0)
-                                    semanticDistances[iStat][jStat] = 1.0;
-                                else
-                                    semanticDistances[iStat][jStat] = 1.0 - similarity;
+                                if(NAME_ORDERED_EVALUATION ? dictionary.tag(iStat).compareTo(dictionary.tag(jStat)) < 0 : iStat < jStat){
+                                    if(similarity == -1.0)
+                                        semanticDistances.set(iStat, jStat, 1.0);
+                                    else
+                                        semanticDistances.set(iStat, jStat, 1.0 - similarity);
+                                }
                                 semanticDistancesCount++;
                             }
                         }else{
@@ -744,22 +927,19 @@ public class DistancesMT {
      * @param k number of nearest neighbors to search for
      * @param i index of reference tag
      * @param distances distance matrix
+     * @param tagsWithIds map with index->tag, equally distant terms are ordered by index, or by tag if NAME_ORDERED_EVALUATION is set
      * @return a list containing k nearest neighbors (in right order)
      */
-    private static List getKNearestTerms(int k , int i, double[][] distances){
+    private static List getKNearestTerms(int k , int i, SymmetricMatrix distances, Map<Integer,String> tagsWithIds){
  
         List<Integer> nearestTerms = new ArrayList<>();
         Map<Integer,Double> scores = new HashMap<>();
         
-        for(int j = 0; j < distances.length; j++){
+        double[] row = distances.row(i, new double[distances.size()]);
+        for(int j = 0; j < row.length; j++){
 
             if(i != j){ //exclude self from nearest neighbors
-                
-                if(i < j){
-                    scores.put(j, distances[i][j]);
-                }else{
-                    scores.put(j, distances[j][i]);
-                }
+                scores.put(j, row[j]);
             }
  
         }
@@ -768,7 +948,13 @@ public class DistancesMT {
         List<Map.Entry<Integer,Double>> scoresList = new ArrayList(scores.entrySet());
         
         //sort in ascending distance order (nearest neighbors)
-        Collections.sort(scoresList, (Map.Entry<Integer,Double>  entry1, Map.Entry<Integer,Double>  entry2) -> entry1.getValue().compareTo(entry2.getValue()));
+        Collections.sort(scoresList, (Map.Entry<Integer,Double>  entry1, Map.Entry<Integer,Double>  entry2) -> {
+            int order = entry1.getValue().compareTo(entry2.getValue());
+            if (order != 0 || !NAME_ORDERED_EVALUATION) {
+                return order;
+            }
+            return tagsWithIds.get(entry1.getKey()).compareTo(tagsWithIds.get(entry2.getKey()));
+        });
         
         Iterator it = scoresList.iterator();
         while (it.hasNext() && nearestTerms.size() < k) {
@@ -788,14 +974,14 @@ public class DistancesMT {
      * @param commonTags list containing tags that appear in both distance matrixes
      * @return average Jaccard distance (between 0 and 1)
      */
-    public static double averageJaccardDistance(int k , double[][] statDistances, double[][] semDistances, List<Integer> commonTags, Map<Integer,String> tagsWithIds){
+    public static double averageJaccardDistance(int k , SymmetricMatrix statDistances, SymmetricMatrix semDistances, List<Integer> commonTags, Map<Integer,String> tagsWithIds){
         
         double averageJaccardDistance = 0.0;
         
         for(Integer index : commonTags){
           
-            List<Integer> semanticNearest = getKNearestTerms(k, index, semDistances);
-            List<Integer> statisticalNearest = getKNearestTerms(k, index, statDistances);
+            List<Integer> semanticNearest = getKNearestTerms(k, index, semDistances, tagsWithIds);
+            List<Integer> statisticalNearest = getKNearestTerms(k, index, statDistances, tagsWithIds);
             
             Set<Integer> intersection = new HashSet<>();
             intersection.addAll(semanticNearest);
@@ -826,14 +1012,14 @@ public class DistancesMT {
      * @param tagsWithIds map with index->tag
      * @return normalized distance between statistical and semantic distance
      */
-    public static double sumOfKNearestTermsDistances(int k, double[][] statDistances, double[][] semDistances, List<Integer> commonTags, Map<Integer,String> tagsWithIds){
+    public static double sumOfKNearestTermsDistances(int k, SymmetricMatrix statDistances, SymmetricMatrix semDistances, List<Integer> commonTags, Map<Integer,String> tagsWithIds){
         
         double result = 0;
         
         for(Integer index : commonTags){
           
-            List<Integer> semanticNearest = getKNearestTerms(k, index, semDistances);
-            List<Integer> statisticalNearest = getKNearestTerms(k, index, statDistances);
+            List<Integer> semanticNearest = getKNearestTerms(k, index, semDistances, tagsWithIds);
+            List<Integer> statisticalNearest = getKNearestTerms(k, index, statDistances, tagsWithIds);
             
             long dist = orderedListsDifferenceDistance(semanticNearest, statisticalNearest);
             result += dist;
@@ -0,0 +1,181 @@
+package statsemdistance;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the Jensen-Shannon divergences of all pairs of histogramms (the upper triangle of the statistical distance
+ * matrix) on the fork-join pool of Multithreading. The triangle is split into TILE x TILE tiles of tags (tiles on the
+ * diagonal only hold their pairs i < j); a tile reads TILE row and TILE column histogramms only, which stay in cache
+ * while its TILE^2 pairs are computed by the allocation free Kernels.jensenShannonDivergence or, if
+ * ENTROPY_DECOMPOSITION is set, from the entropies of the histogramms (computed once) and of their mixture only (see
+ * JensonShanonDivergence). When less than SPARSE_DENSITY of all the bins are non zero (a tag cooccurs with few of the
+ * representative tags), the histogramms are first reduced to their non zero entries and pairs are computed by merging
+ * them (see JensonShanonDivergence). The sparse merge gives exactly the divergences of the scalar dense loop; with
+ * EXACT_DIVERGENCES set (the default) dense pairs run that scalar loop, so the divergences do not depend on which path the
+ * density of the data picks. Without it, dense pairs run the SIMD loop when the Vector API is available (see Kernels),
+ * and the last bits of the divergences, and so the order of equally distant neighbours, depend on the path.
+ * Tasks split the list of tiles in two halves down to a single tile, so idle threads steal whole tiles, and every task
+ * returns the max of its divergences, reduced two by two.
+ * @author mgarchery
+ */
+public class DivergenceTiles {
+
+    public static int TILE = 64; // tags per side of a tile
+    public static double SPARSE_DENSITY = 0.5; // histogramms are stored sparse when less than this fraction of all their bins is non zero (0 for always dense)
+    public static boolean EXACT_DIVERGENCES = true; // dense pairs use the scalar loop, bit for bit the sparse merge (false: SIMD loop when available, faster, last bits depend on SPARSE_DENSITY)
+    public static boolean ENTROPY_DECOMPOSITION = false; // JSD = H(M) - (H(P) + H(Q))/2 with H(P), H(Q) computed once per tag (much faster, but rounds differently, which reorders equally distant neighbours)
+
+    private final double[][] histogramms;
+    private final int[][] indexes;      // non zero bins of every histogramm, null if dense
+    private final double[][] values;    // values of the non zero bins, null if dense
+    private final SymmetricMatrix distances;
+    private final double[] xLogX;       // sum of x ln(x) of every histogramm, null without ENTROPY_DECOMPOSITION
+    private final int[] tileRows;    // first tag of the rows of every tile
+    private final int[] tileColumns; // first tag of the columns of every tile
+
+    private DivergenceTiles(double[][] histogramms, SymmetricMatrix distances) {
+        this.histogramms = histogramms;
+        this.distances = distances;
+        if (ENTROPY_DECOMPOSITION) {
+            xLogX = new double[histogramms.length];
+            for (int i = 0; i < histogramms.length; i++) {
+                xLogX[i] = JensonShanonDivergence.xLogX(histogramms[i]);
+            }
+        } else {
+            xLogX = null;
+        }
+
+        long nonZeros = 0;
+        long bins = 0;
+        for (double[] histogramm : histogramms) {
+            for (double value : histogramm) {
+                if (value != 0) {
+                    nonZeros++;
+                }
+            }
+            bins += histogramm.length;
+        }
+        if (nonZeros < SPARSE_DENSITY * bins) {
+            indexes = new int[histogramms.length][];
+            values = new double[histogramms.length][];
+            for (int i = 0; i < histogramms.length; i++) {
+                sparsify(i);
+            }
+        } else {
+            indexes = null;
+            values = null;
+        }
+
+        int tiles = (histogramms.length + TILE - 1) / TILE;
+        tileRows = new int[tiles * (tiles + 1) / 2];
+        tileColumns = new int[tileRows.length];
+        int t = 0;
+        for (int row = 0; row < tiles; row++) {
+            for (int column = row; column < tiles; column++) {
+                tileRows[t] = row * TILE;
+                tileColumns[t++] = column * TILE;
+            }
+        }
+    }
+
+    /**
+     * Stores the non zero bins of histogramm i
+     */
+    private void sparsify(int i) {
+        double[] histogramm = histogramms[i];
+        int count = 0;
+        for (double value : histogramm) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        indexes[i] = new int[count];
+        values[i] = new double[count];
+        count = 0;
+        for (int k = 0; k < histogramm.length; k++) {
+            if (histogramm[k] != 0) {
+                indexes[i][count] = k;
+                values[i][count++] = histogramm[k];
+            }
+        }
+    }
+
+    /**
+     * Sets the divergence of every pair of different tags (i, j) into the distance matrix
+     * @param histogramms histogramm of every tag (all of the same length), indexed by tag id
+     * @param distances matrix receiving the divergences, the diagonal is left as it is
+     * @return max of all divergences (0 if there is none)
+     */
+    public static double computeDivergences(double[][] histogramms, SymmetricMatrix distances) {
+        DivergenceTiles tiles = new DivergenceTiles(histogramms, distances);
+        if (tiles.tileRows.length == 0) {
+            return 0.0;
+        }
+        return Multithreading.getForkJoinPool().invoke(tiles.new TilesTask(0, tiles.tileRows.length));
+    }
+
+    /**
+     * Computes the tiles from (inclusive) to to (exclusive)
+     */
+    private class TilesTask extends RecursiveTask<Double> {
+
+        private final int from;
+        private final int to;
+
+        TilesTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from == 1) {
+                return computeTile(tileRows[from], tileColumns[from]);
+            }
+            int middle = (from + to) >>> 1;
+            TilesTask left = new TilesTask(from, middle);
+            left.fork();
+            double max = new TilesTask(middle, to).compute();
+            double leftMax = left.join();
+            return leftMax > max ? leftMax : max;
+        }
+    }
+
+    /**
+     * Computes the pairs (i, j), i < j, of the tile with rows rowStart ... rowStart + TILE - 1 and columns columnStart ...
+     * @return max of the divergences of the tile
+     */
+    private double computeTile(int rowStart, int columnStart) {
+        int rowEnd = Math.min(rowStart + TILE, histogramms.length);
+        int columnEnd = Math.min(columnStart + TILE, histogramms.length);
+        double max = 0.0;
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int j = Math.max(columnStart, i + 1); j < columnEnd; j++) {
+                double distance = divergence(i, j);
+                distances.set(i, j, distance);
+                if (distance > max) {
+                    max = distance;
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return divergence of histogramms i and j, in the sparse or dense form, decomposed or not
+     */
+    private double divergence(int i, int j) {
+        if (indexes != null) {
+            return xLogX != null
+                    ? JensonShanonDivergence.jensenShannonDivergence(indexes[i], values[i], indexes[j], values[j], xLogX[i], xLogX[j])
+                    : JensonShanonDivergence.jensenShannonDivergence(indexes[i], values[i], indexes[j], values[j]);
+        }
+        if (xLogX != null) {
+            return JensonShanonDivergence.jensenShannonDivergence(histogramms[i], histogramms[j], xLogX[i], xLogX[j]);
+        }
+        return EXACT_DIVERGENCES
+                ? Kernels.scalarJensenShannonDivergence(histogramms[i], histogramms[j])
+                : Kernels.jensenShannonDivergence(histogramms[i], histogramms[j]);
+    }
+}
@@ -0,0 +1,94 @@
+package statsemdistance;
+
+/**
+ * MatrixBackend on flat row-major double arrays: a matrix is a single array (no array per row), rows are read as
+ * contiguous slices of it and row sums are summed by ascending column.
+ * A matrix can hold at most Integer.MAX_VALUE - 8 entries.
+ * @author mgarchery
+ */
+public class FlatBackend implements MatrixBackend {
+
+    /**
+     * Row-major matrix, entry (i, j) is data[i * columns + j]
+     */
+    public static class FlatMatrix implements DenseMatrix {
+
+        private final int rows;
+        private final int columns;
+        private final double[] data;
+
+        public FlatMatrix(int rows, int columns) {
+            if ((long) rows * columns > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Matrix too big for a flat array: " + rows + " x " + columns);
+            }
+            this.rows = rows;
+            this.columns = columns;
+            this.data = new double[rows * columns];
+        }
+
+        /**
+         * @return the row-major entries, shared array
+         */
+        public double[] data() {
+            return data;
+        }
+
+        @Override
+        public int rows() {
+            return rows;
+        }
+
+        @Override
+        public int columns() {
+            return columns;
+        }
+
+        @Override
+        public double get(int i, int j) {
+            return data[i * columns + j];
+        }
+
+        @Override
+        public void set(int i, int j, double value) {
+            data[i * columns + j] = value;
+        }
+
+        @Override
+        public double[] row(int i, double[] buffer) {
+            System.arraycopy(data, i * columns, buffer, 0, columns);
+            return buffer;
+        }
+    }
+
+    private static FlatMatrix flat(DenseMatrix a) {
+        if (a instanceof FlatMatrix) {
+            return (FlatMatrix) a;
+        }
+        FlatMatrix matrix = new FlatMatrix(a.rows(), a.columns());
+        double[] buffer = new double[a.columns()];
+        for (int i = 0; i < a.rows(); i++) {
+            System.arraycopy(a.row(i, buffer), 0, matrix.data, i * a.columns(), a.columns());
+        }
+        return matrix;
+    }
+
+    @Override
+    public DenseMatrix zeros(int rows, int columns) {
+        return new FlatMatrix(rows, columns);
+    }
+
+    @Override
+    public double[] rowSums(DenseMatrix matrix) {
+        FlatMatrix a = flat(matrix);
+        double[] sums = new double[a.rows];
+        for (int i = 0; i < a.rows; i++) {
+            int base = i * a.columns;
+            double sum = 0;
+            for (int j = 0; j < a.columns; j++) {
+                sum += a.data[base + j];
+            }
+            sums[i] = sum;
+        }
+        return sums;
+    }
+}
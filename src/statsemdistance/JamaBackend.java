@@ -0,0 +1,80 @@
+package statsemdistance;
+
+import Jama.Matrix;
+
+/**
+ * Reference MatrixBackend on top of Jama (http://math.nist.gov/javanumerics/jama/): matrixes are Jama Matrix (double[][]),
+ * row sums are the product with a vector of ones.
+ * @author mgarchery
+ */
+public class JamaBackend implements MatrixBackend {
+
+    /**
+     * DenseMatrix view of a Jama Matrix
+     */
+    public static class JamaMatrix implements DenseMatrix {
+
+        private final Matrix matrix;
+        private final double[][] array;
+
+        public JamaMatrix(Matrix matrix) {
+            this.matrix = matrix;
+            this.array = matrix.getArray();
+        }
+
+        /**
+         * @return the underlying Jama Matrix
+         */
+        public Matrix matrix() {
+            return matrix;
+        }
+
+        @Override
+        public int rows() {
+            return matrix.getRowDimension();
+        }
+
+        @Override
+        public int columns() {
+            return matrix.getColumnDimension();
+        }
+
+        @Override
+        public double get(int i, int j) {
+            return array[i][j];
+        }
+
+        @Override
+        public void set(int i, int j, double value) {
+            array[i][j] = value;
+        }
+
+        @Override
+        public double[] row(int i, double[] buffer) {
+            return array[i];
+        }
+    }
+
+    private static Matrix jama(DenseMatrix a) {
+        if (a instanceof JamaMatrix) {
+            return ((JamaMatrix) a).matrix();
+        }
+        Matrix matrix = new Matrix(a.rows(), a.columns());
+        double[][] array = matrix.getArray();
+        for (int i = 0; i < a.rows(); i++) {
+            System.arraycopy(a.row(i, array[i]), 0, array[i], 0, a.columns());
+        }
+        return matrix;
+    }
+
+    @Override
+    public DenseMatrix zeros(int rows, int columns) {
+        return new JamaMatrix(new Matrix(rows, columns));
+    }
+
+    @Override
+    public double[] rowSums(DenseMatrix a) {
+        Matrix ones = new Matrix(a.columns(), 1, 1.0);
+        return jama(a).times(ones).getColumnPackedCopy();
+    }
+}
@@ -15,14 +15,11 @@ package statsemdistance;
 public class JensonShanonDivergence {
     /**
      * Returns the Jensen-Shannon divergence.
+     * Both KL divergences to the average are summed in one loop, without allocating the average (see Kernels).
      */
     public static double jensenShannonDivergence(double[] p1, double[] p2) {
         assert(p1.length == p2.length);
-        double[] average = new double[p1.length];
-        for (int i = 0; i < p1.length; ++i) {
-            average[i] += (p1[i] + p2[i])/2;
-        }
-        return (klDivergence(p1, average) + klDivergence(p2, average))/2;
+        return Kernels.jensenShannonDivergence(p1, p2);
     }
 
     public static final double log2 = Math.log(2);
@@ -37,15 +34,117 @@ public class JensonShanonDivergence {
      */
     public static double klDivergence(double[] p1, double[] p2) {
 
-        double klDiv = 0.0;
+        double klDiv = Kernels.klDivergence(p1, p2); // SIMD loop when available
+
+        return klDiv / log2; // moved this division out of the loop -DM
+    }
+
+    public static boolean LOG_TABLE = true; // look x ln(x) up in a table for the halves of small integers (histogramm counts and their mixtures)
+    private static final int LOG_TABLE_SIZE = 1 << 13;
+    private static final double[] X_LOG_X = new double[LOG_TABLE_SIZE]; // entry s is (s/2) ln(s/2)
+    static {
+        for (int s = 1; s < LOG_TABLE_SIZE; s++) {
+            double x = s / 2.0;
+            X_LOG_X[s] = x * Math.log(x);
+        }
+    }
+
+    /**
+     * Returns x ln(x), 0 for x = 0.
+     *
+     * For x = k/2 with 0 <= k < 8192 (raw cooccurrence counts and the averages of two of them), the value is read from a
+     * table filled with the same expression, so it is exactly the computed one (error bound 0) without calling
+     * Math.log. Other values are computed (NaN for negative x).
+     */
+    public static double xLogX(double x) {
+        double twice = x + x;
+        if (LOG_TABLE && twice >= 0 && twice < LOG_TABLE_SIZE) {
+            int index = (int) twice;
+            if (index == twice) {
+                return X_LOG_X[index];
+            }
+        }
+        return x == 0 ? 0 : x * Math.log(x);
+    }
+
+    /**
+     * Returns the sum of p_i ln(p_i) over p, i.e. minus the entropy of p in nats (p does not need to be normalized).
+     * To be computed once per histogramm for jensenShannonDivergence(p1, p2, xLogX1, xLogX2).
+     */
+    public static double xLogX(double[] p) {
+        double sum = 0.0;
+        for (int i = 0; i < p.length; ++i) {
+            sum += xLogX(p[i]);
+        }
+        return sum;
+    }
 
+    /**
+     * Returns the Jensen-Shannon divergence from its entropy decomposition JSD(P,Q) = H(M) - (H(P) + H(Q))/2, with
+     * M = (P + Q)/2 and the entropies of P and Q given (see xLogX(double[])): only x ln(x) of the mixture is needed per
+     * entry, one log (or one table read) instead of the two of jensenShannonDivergence(p1, p2).
+     * The same value as jensenShannonDivergence(p1, p2) up to rounding: the entropies are of the order of N ln(N)
+     * (N the total count) and the difference loses about 1e-16 N ln(N) in absolute terms, so nearly identical
+     * histogramms can come out slightly negative, which is clamped to 0.
+     */
+    public static double jensenShannonDivergence(double[] p1, double[] p2, double xLogX1, double xLogX2) {
+        assert(p1.length == p2.length);
+        double mixture = 0.0;
         for (int i = 0; i < p1.length; ++i) {
-            if (p1[i] == 0) { continue; }
-            if (p2[i] == 0.0) { continue; } // Limin
+            mixture += xLogX((p1[i] + p2[i])/2);
+        }
+        double divergence = ((xLogX1 + xLogX2)/2 - mixture) / log2;
+        return divergence > 0 ? divergence : 0;
+    }
 
-            klDiv += p1[i] * Math.log( p1[i] / p2[i] );
+    /**
+     * Returns the Jensen-Shannon divergence of two sparse histogramms, given by their non zero entries (indexes sorted
+     * ascending, values at the same positions).
+     *
+     * The entries are merged: an index of only one side contributes the closed form p ln(p / (p/2)) = p ln(2), an index
+     * of both sides the same terms as the dense loop, in the same order, so the result is exactly the one of
+     * Kernels.scalarJensenShannonDivergence on the dense histogramms. jensenShannonDivergence(p1, p2) only gives it too
+     * when it runs the scalar loop: the SIMD loop sums its lanes separately and can differ in the last bits.
+     */
+    public static double jensenShannonDivergence(int[] indexes1, double[] values1, int[] indexes2, double[] values2) {
+        double kl1 = 0.0;
+        double kl2 = 0.0;
+        int a = 0, b = 0;
+        while (a < indexes1.length || b < indexes2.length) {
+            if (b == indexes2.length || (a < indexes1.length && indexes1[a] < indexes2[b])) {
+                kl1 += values1[a++] * log2;
+            } else if (a == indexes1.length || indexes2[b] < indexes1[a]) {
+                kl2 += values2[b++] * log2;
+            } else {
+                double p1 = values1[a++];
+                double p2 = values2[b++];
+                double m = (p1 + p2)/2;
+                kl1 += p1 * Math.log( p1 / m );
+                kl2 += p2 * Math.log( p2 / m );
+            }
         }
+        return (kl1 / log2 + kl2 / log2) / 2;
+    }
 
-        return klDiv / log2; // moved this division out of the loop -DM
+    /**
+     * Returns the Jensen-Shannon divergence of two sparse histogramms (see above) from its entropy decomposition (see
+     * jensenShannonDivergence(p1, p2, xLogX1, xLogX2), same result): only the mixture terms of the merged non zero
+     * entries are computed.
+     */
+    public static double jensenShannonDivergence(int[] indexes1, double[] values1, int[] indexes2, double[] values2,
+                                                 double xLogX1, double xLogX2) {
+        double mixture = 0.0;
+        int a = 0, b = 0;
+        while (a < indexes1.length || b < indexes2.length) {
+            if (b == indexes2.length || (a < indexes1.length && indexes1[a] < indexes2[b])) {
+                mixture += xLogX(values1[a++]/2);
+            } else if (a == indexes1.length || indexes2[b] < indexes1[a]) {
+                mixture += xLogX(values2[b++]/2);
+            } else {
+                mixture += xLogX((values1[a++] + values2[b++])/2);
+            }
+        }
+        double divergence = ((xLogX1 + xLogX2)/2 - mixture) / log2;
+        return divergence > 0 ? divergence : 0;
     }
-}
\ No newline at end of file
+}
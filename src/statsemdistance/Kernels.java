@@ -0,0 +1,101 @@
+package statsemdistance;
+
+/**
+ * Inner loops of the distance and Laplacian score computations (axpy, KL and Jensen-Shannon divergences).
+ * When the JVM runs with --add-modules jdk.incubator.vector (see run.jvmargs in nbproject/project.properties) and the CPU
+ * has SIMD registers, they are computed with the Vector API (VectorKernels), otherwise by the scalar loops below.
+ * The check is done once, when this class is loaded; VECTORIZED = false forces the scalar loops.
+ * @author mgarchery
+ */
+public class Kernels {
+
+    public static boolean VECTORIZED = true; // use the Vector API kernels when they are available
+    public static int MIN_VECTOR_LENGTH = 64; // shorter loops stay scalar, setting up the vectors would cost more than it saves
+
+    private static final boolean VECTOR_API = vectorApiAvailable();
+
+    private static boolean vectorApiAvailable() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return false;
+        }
+        try {
+            return VectorKernels.lanes() > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the kernels currently run on the Vector API
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED && VECTOR_API;
+    }
+
+    private static boolean vectorized(int length) {
+        return length >= MIN_VECTOR_LENGTH && VECTORIZED && VECTOR_API;
+    }
+
+    /**
+     * y[yFrom + i] += a x[xFrom + i] for i = 0 ... length - 1
+     */
+    public static void axpy(double a, double[] x, int xFrom, double[] y, int yFrom, int length) {
+        if (vectorized(length)) {
+            VectorKernels.axpy(a, x, xFrom, y, yFrom, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            y[yFrom + i] += a * x[xFrom + i];
+        }
+    }
+
+    /**
+     * KL divergence K(p1 || p2) with the natural logarithm, entries where p1 or p2 is 0 being skipped
+     * (see JensonShanonDivergence.klDivergence)
+     */
+    public static double klDivergence(double[] p1, double[] p2) {
+        if (vectorized(p1.length)) {
+            return VectorKernels.klDivergence(p1, p2);
+        }
+        double klDiv = 0.0;
+        for (int i = 0; i < p1.length; ++i) {
+            if (p1[i] == 0) { continue; }
+            if (p2[i] == 0.0) { continue; } // Limin
+
+            klDiv += p1[i] * Math.log( p1[i] / p2[i] );
+        }
+        return klDiv;
+    }
+
+    /**
+     * Jensen-Shannon divergence of p1 and p2 (same length) in bits, (K(p1 || m) + K(p2 || m)) / 2 with m = (p1 + p2) / 2,
+     * in one loop: m is never stored and nothing is allocated. Both KL sums are kept apart and divided as in
+     * JensonShanonDivergence, so the scalar result is the one of two separate klDivergence calls.
+     */
+    public static double jensenShannonDivergence(double[] p1, double[] p2) {
+        if (vectorized(p1.length)) {
+            return VectorKernels.jensenShannonDivergence(p1, p2);
+        }
+        return scalarJensenShannonDivergence(p1, p2);
+    }
+
+    /**
+     * The scalar loop of jensenShannonDivergence, whatever VECTORIZED: terms are summed by ascending bin, so the result is
+     * bit for bit the one of the original two KL loops and of the sparse merge of JensonShanonDivergence
+     */
+    public static double scalarJensenShannonDivergence(double[] p1, double[] p2) {
+        double kl1 = 0.0;
+        double kl2 = 0.0;
+        for (int i = 0; i < p1.length; ++i) {
+            double m = (p1[i] + p2[i]) / 2;
+            if (m == 0.0) { continue; }
+            if (p1[i] != 0) {
+                kl1 += p1[i] * Math.log(p1[i] / m);
+            }
+            if (p2[i] != 0) {
+                kl2 += p2[i] * Math.log(p2[i] / m);
+            }
+        }
+        return (kl1 / JensonShanonDivergence.log2 + kl2 / JensonShanonDivergence.log2) / 2;
+    }
+}
@@ -1,25 +1,38 @@
 package statsemdistance;
 
-import Jama.Matrix;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
  * This class selects the most representative tags according to their Laplacian scores.
- * Uses Jama library (http://math.nist.gov/javanumerics/jama/) for matrix operations
+ * The similarity matrix is by default a packed off-heap SymmetricMatrix (computed by CosineGram, degrees summed by
+ * SymmetricMatrix.rowSums), which does not use the MatrixBackend BACKEND at all. Only with PACKED_SIMILARITIES off is the
+ * similarity matrix a BACKEND matrix (flat arrays by default, Jama library (http://math.nist.gov/javanumerics/jama/) for
+ * reference) whose degrees are its BACKEND row sums. All the products of the Laplacian score are sparse (SparseCooccurrence
+ * rows, CosineGram, LaplacianScoreKernel) and the same whatever the backend.
  * 
  * @author mgarchery
  */
 public class LaplacianScore {
     
+    public static MatrixBackend BACKEND = new FlatBackend(); // dense matrix library, JamaBackend for reference
+    public static boolean PARALLEL_COOCCURRENCES = true; // build the cooccurrence matrix on the fork-join pool
+    public static int GRAPH_NEIGHBORS = 0; // > 0 to keep only the k most similar tags of every tag in a sparse kNN graph (0 = dense cosine graph)
+    public static double GRAPH_THRESHOLD = 0; // > 0 to keep only the similarities at least this high in a sparse graph (0 = dense cosine graph)
+    public static boolean STREAMING_SIMILARITIES = false; // never build the similarity matrix: its rows are computed, folded into the scores and discarded (memory O(n) per thread instead of O(n^2))
+    public static boolean BATCHED_SCORES = true; // compute the scores of all tags in one pass over the similarity matrix (LaplacianScoreKernel) instead of one task per tag
+    public static boolean PACKED_SIMILARITIES = true; // keep the similarity matrix as an off-heap packed upper triangle (SymmetricMatrix) instead of a full BACKEND matrix (bypasses BACKEND)
+    public static boolean SINGLE_PRECISION_SIMILARITIES = false; // store the packed similarities as floats (half the memory, scores change slightly)
     
     /**
      * Puts the most representative tags (i.e. tags with highest Laplacian scores) in a list
@@ -27,43 +40,73 @@ public class LaplacianScore {
      * @return list containing the most representative tags according to Laplacian scores
      */
     public static Map getTagsWithLaplacianScores(Map imagesTags) {
-        
-        Map alltags = DistancesMT.countOccurrences(imagesTags);
+        return getTagsWithLaplacianScores(TagCorpus.fromMap(imagesTags));
+    }
+
+    /**
+     * Computes the Laplacian scores of all tags of the corpus
+     * @param corpus all the images and their corresponding tags
+     * @return map <key=tag,value=LS score> sorted by descending Laplacian scores
+     */
+    public static Map getTagsWithLaplacianScores(TagCorpus corpus) {
+
+        if(DistancesMT.PRINT == 1){
+            System.out.println("Computing cooccurrence matrix...");
+        }
+        return getTagsWithLaplacianScores(corpus, CooccurrenceAccumulator.accumulate(corpus, PARALLEL_COOCCURRENCES));
+    }
+
+    /**
+     * Computes the Laplacian scores of all tags of the corpus from its cooccurrence matrix, when it is already built
+     * (e.g. to be shared with DistanceSweep)
+     * @param corpus all the images and their corresponding tags
+     * @param cooccurrence cooccurrence matrix of the corpus (see CooccurrenceAccumulator)
+     * @return map <key=tag,value=LS score> sorted by descending Laplacian scores
+     */
+    public static Map getTagsWithLaplacianScores(TagCorpus corpus, SparseCooccurrence cooccurrence) {
 
         if(DistancesMT.PRINT == 1){
             System.out.println("Getting most representative tags with Laplacian score...");
         }
         
         //affect indices to tags
-        Map<Integer,String> tagsWithIds = allTagsWithIds(imagesTags);
+        Map<Integer,String> tagsWithIds = allTagsWithIds(corpus);
 
         if(DistancesMT.PRINT == 1){
             System.out.println("Number of unique tags: " + tagsWithIds.size());
         }
 
-        //compute cooccurrence, cosine similarity, diagonal and finally Laplacian matrixes
-        if(DistancesMT.PRINT == 1){
-            System.out.println("Computing cooccurrence matrix...");
-        }
-        Matrix cooccurrence = cooccurrenceMatrix(tagsWithIds,imagesTags);
+        //cosine similarity matrix and the degree vector (diagonal of D, L = D - S is never built)
 
-        if(DistancesMT.PRINT == 1){
-            System.out.println("Computing similarity matrix...");
-        }
-        Matrix similarity = getCosineSimilarityMatrix(cooccurrence);
+        Map tagsWithLS;
+        if(GRAPH_NEIGHBORS > 0 || GRAPH_THRESHOLD > 0){
+            if(DistancesMT.PRINT == 1){
+                System.out.println("Computing similarity graph...");
+            }
+            SimilarityGraph graph = SimilarityGraph.build(cooccurrence, GRAPH_NEIGHBORS, GRAPH_THRESHOLD);
+            if(DistancesMT.PRINT == 1){
+                System.out.println("Similarity graph has " + graph.nonZeros() / 2 + " edges, computing Laplacian scores...");
+            }
+            tagsWithLS = scoresWithTags(LaplacianScoreKernel.scores(cooccurrence, graph), tagsWithIds);
+        }else if(STREAMING_SIMILARITIES){
+            if(DistancesMT.PRINT == 1){
+                System.out.println("Computing Laplacian scores from streamed similarities...");
+            }
+            tagsWithLS = scoresWithTags(LaplacianScoreKernel.streamingScores(cooccurrence), tagsWithIds);
+        }else{
+            if(DistancesMT.PRINT == 1){
+                System.out.println("Computing similarity matrix...");
+            }
+            DenseMatrix similarity = getCosineSimilarityMatrix(cooccurrence);
 
-        if(DistancesMT.PRINT == 1){
-            System.out.println("Computing diagonal matrix...");
-        }
-        Matrix diagonal = getDiagonalMatrix(similarity);
+            if(DistancesMT.PRINT == 1){
+                System.out.println("Computing degrees...");
+            }
+            double[] degrees = getDegrees(similarity);
 
-        if(DistancesMT.PRINT == 1){
-            System.out.println("Computing laplacian matrix...");
+            //compute Laplacian score for each tag
+            tagsWithLS = getLaplacianScores(cooccurrence, similarity, degrees, tagsWithIds);
         }
-        Matrix laplacian = diagonal.minus(similarity);
-
-        //compute Laplacian score for each tag
-        Map tagsWithLS = getLaplacianScores(cooccurrence, diagonal, laplacian, tagsWithIds);
 
         //sort result map by descending Laplacian scores
         tagsWithLS = sortMapDescendingDouble(tagsWithLS);
@@ -97,148 +140,145 @@ public class LaplacianScore {
         if(DistancesMT.PRINT == 1){
             System.out.println("Mapping tags to matrix indices ...\n");
         }
-        
-        Map<Integer,String> tagsWithIds = new HashMap<>();
-
-        /* Iterate through the map */
-        Iterator itMap = imagesTags.entrySet().iterator();
-        int indice = 0; //indice to be affected to the tag
-        while (itMap.hasNext()) {
-            Map.Entry pairFromMap = (Map.Entry) itMap.next();
-
-             /* Select the list of tags in the pair (ArrayList) */
-            ArrayList tagList = (ArrayList) pairFromMap.getValue();
-
-            /* Iterate through that list, adding tags only once to the tagpool and with unique indices */
-            for (String s : (ArrayList<String>) tagList) {
-                /* Include the tag if it does not already exist */
-                    if(!tagsWithIds.containsValue(s)){
-                        tagsWithIds.put(indice++,s);
-                    }
-            }
-        }
+
+        /* Tags get unique indices in the order they are first met */
+        TagDictionary dictionary = TagDictionary.fromMap(imagesTags);
+
         if(DistancesMT.PRINT == 1){
-            System.out.println("Mapped tags to matrix indices from 0 to " + (indice-1) +".\n");
+            System.out.println("Mapped tags to matrix indices from 0 to " + (dictionary.size()-1) +".\n");
         }
-        return tagsWithIds;
+        return dictionary.asMap();
     }
 
+    /**
+     * Maps all tags of the corpus to their indice (representing the tag position in the cooccurrence and similarity matrixes)
+     * @param corpus all the images and their corresponding tags
+     * @return map with <key=indice,value=tag>
+     */
+   public static Map<Integer,String> allTagsWithIds(TagCorpus corpus) {
+        return corpus.tagsWithIds();
+   }
+
    /**
-    * Computes the cosine similarity matrix using multithreading
-    * @param cooccurences cooccurrence matrix as Jama Matrix
-    * @return similarity matrix as Jama Matrix or null if input matri is not square
+    * Computes the cosine similarity matrix as a tiled Gram product of the row normalized cooccurrences (see CosineGram)
+    * @param cooccurrences sparse symmetric cooccurrence matrix
+    * @return similarity matrix
     */
-   private static Matrix getCosineSimilarityMatrix(Matrix cooccurences){
-       
-       if(cooccurences.getColumnDimension() != cooccurences.getRowDimension()){
-           System.out.println("Cooccurrence matrix must be square");
-           return null;
-       }
-       int size = cooccurences.getRowDimension();
-       Matrix similarities = new Matrix(size,size);
-       
-        if(DistancesMT.PRINT == 1){
+   private static DenseMatrix getCosineSimilarityMatrix(SparseCooccurrence cooccurrences){
+
+       if(DistancesMT.PRINT == 1){
             System.out.println("Starting multithreaded cosine similarities calculation");
-        }
-       
-        //number of tasks is (n^2 + n)/2, round up to next integer
-        int tasksAmount = (size+1)*(size+1)/2;
-        int poolSize = tasksAmount;
-        
-       /* Multithreading */
-       ImageSignatureThreadPoolExecutor executor =  Multithreading.initializeQueueAndGetExecutor(poolSize);
-       
-       for(int i = 0 ; i < size ; i++){
-           for(int j = i; j < size ; j++){
-               
-               Matrix v1 = cooccurences.getMatrix(i, i, 0, size-1);
-               Matrix v2 = cooccurences.getMatrix(j, j, 0, size-1);
-               executor.execute(new CosineSimilarityCalculatorThread(v1, v2, i, j, similarities));  
-           }
        }
-       
-       Multithreading.waitForExecutionEnd();
+
+       DenseMatrix similarities;
+       if(PACKED_SIMILARITIES){
+           similarities = CosineGram.similarities(cooccurrences, new SymmetricMatrix(cooccurrences.size(), SINGLE_PRECISION_SIMILARITIES));
+       }else{
+           similarities = CosineGram.similarities(cooccurrences, BACKEND);
+       }
+
        if(DistancesMT.PRINT == 1){
             System.out.println("Multithreaded cosine similarities calculation done!");
        }
-       /* Multithreading ends */
        return similarities;
    }
-   
+
   /**
-   * Computes the diagonal matrix for the Laplacian score
-   * i-th diagonal term is defined as the sum of all elements of the i-th vector in the cosine similarity matrix
-   * @param cosineSimilarityMatrix cosine similarity matrix (must be square, as Jama Matrix)
-   * @return diagonal matrix as Jama Matrix or square matrix with zero values if the input matrix is not square
+   * Computes the degrees for the Laplacian score, i.e. the diagonal of the diagonal matrix D
+   * i-th degree is defined as the sum of all elements of the i-th vector in the cosine similarity matrix
+   * @param cosineSimilarityMatrix cosine similarity matrix (must be square)
+   * @return degree vector, zero values if the input matrix is not square
    */
-   private static Matrix getDiagonalMatrix(Matrix cosineSimilarityMatrix){
-       
-       int size = cosineSimilarityMatrix.getRowDimension();
-       Matrix diagonal = new Matrix(size, size,0.0);
-       
-       if(cosineSimilarityMatrix.getColumnDimension() != cosineSimilarityMatrix.getRowDimension()){
+   private static double[] getDegrees(DenseMatrix cosineSimilarityMatrix){
+
+       if(cosineSimilarityMatrix.columns() != cosineSimilarityMatrix.rows()){
            System.out.println("Cosine similarity matrix must be square");
-       }else{
-           for(int i = 0 ; i < size  ; i++){
-           double d = 0;
-           for(int j = 0 ; j < size; j++){
-               d += cosineSimilarityMatrix.get(i, j);
-           }
-           diagonal.set(i, i, d);
-           }
-       }       
-       return diagonal;
+           return new double[cosineSimilarityMatrix.rows()];
+       }
+       if(cosineSimilarityMatrix instanceof SymmetricMatrix){
+           return ((SymmetricMatrix) cosineSimilarityMatrix).rowSums();
+       }
+       return BACKEND.rowSums(cosineSimilarityMatrix);
    }
-   
+
    /**
-    * Computes Laplacian scores for all tags using multithreading
-    * @param cooccurrences cooccurrence matrix
-    * @param diagonal diagonal matrix as defined in LS formula
-    * @param laplacian Laplacian matrix
+    * Computes Laplacian scores for all tags using multithreading, feature vectors are the sparse cooccurrence columns
+    * (all at once with LaplacianScoreKernel if BATCHED_SCORES is set, one LaplacianScoreCalculatorThread per tag otherwise)
+    * @param cooccurrences sparse symmetric cooccurrence matrix
+    * @param similarity cosine similarity matrix
+    * @param degrees degree vector (diagonal of D)
     * @param tagsWithIds map containing the tags and their indices in the matrixes
     * @return scores for all input tags as map<string tag, double score>
     */
-   private static Map<String,Double> getLaplacianScores(Matrix cooccurrences, Matrix diagonal, Matrix laplacian, Map<Integer,String> tagsWithIds){
-       
-       if(cooccurrences.getColumnDimension() != cooccurrences.getRowDimension()){
-           System.out.println("Cooccurrence matrix must be square");
-           return null;
-       }
-       
-       int size = cooccurrences.getRowDimension();
-       
-       if(size != diagonal.getColumnDimension() || size != diagonal.getRowDimension() ||
-          size != laplacian.getColumnDimension() || size != laplacian.getRowDimension()){
+   private static Map<String,Double> getLaplacianScores(SparseCooccurrence cooccurrences, DenseMatrix similarity, double[] degrees, Map<Integer,String> tagsWithIds){
+
+       int size = cooccurrences.size();
+
+       if(size != similarity.columns() || size != similarity.rows() || size != degrees.length){
            System.out.println("Matrix and  vector sizes must agree to compute Laplacian score");
            return null;
        }
-       
+
        if(DistancesMT.PRINT == 1){
            System.out.println("Starting multithreaded Laplacian scores calculation");
        }
-    
-        /* Multithreading */
-       ImageSignatureThreadPoolExecutor executor =  Multithreading.initializeQueueAndGetExecutor(size);
-        
-       Matrix ones = new Matrix(size,1,1); //ones column vector
-       Matrix onesT = ones.transpose();
-       
-       Map<String,Double> tagsWithLS = new HashMap<>();
-       
-       for(Integer i : tagsWithIds.keySet()){
-           Matrix feature = cooccurrences.getMatrix(0, size-1, i, i); //feature vector 
-           executor.execute(new LaplacianScoreCalculatorThread(tagsWithIds.get(i), feature, laplacian, diagonal, ones, onesT, tagsWithLS));    
+
+       double[] scores;
+
+       if(BATCHED_SCORES){
+           scores = LaplacianScoreKernel.scores(cooccurrences, similarity, degrees);
+       }else{
+           double degreeSum = 0;
+           for(int i = 0; i < size; i++){
+               degreeSum += degrees[i];
+           }
+
+            /* Multithreading, every task writes its own entry of scores */
+           ImageSignatureThreadPoolExecutor executor =  Multithreading.initializeQueueAndGetExecutor(Math.max(size, 1));
+
+           scores = new double[size];
+           for(Integer i : tagsWithIds.keySet()){
+               executor.execute(new LaplacianScoreCalculatorThread(i, cooccurrences, similarity, degrees, degreeSum, scores));
+           }
+           Multithreading.waitForExecutionEnd();
        }
-       Multithreading.waitForExecutionEnd();
-       
+
        if(DistancesMT.PRINT == 1){
            System.out.println("Multithreaded Laplacian scores calculation done!");
        }
        /* Multithreading ends */
+
+       return scoresWithTags(scores, tagsWithIds);
+   }
+
+   /**
+    * @param scores scores indexed by tag id
+    * @param tagsWithIds map containing the tags and their indices in the matrixes
+    * @return scores for all input tags as map<string tag, double score>
+    */
+   private static Map<String,Double> scoresWithTags(double[] scores, Map<Integer,String> tagsWithIds){
+       Map<String,Double> tagsWithLS = new HashMap<>();
+       for(Map.Entry<Integer,String> entry : tagsWithIds.entrySet()){
+           tagsWithLS.put(entry.getValue(), scores[entry.getKey()]);
+       }
        return tagsWithLS;
-       
    }
-   
+
+   /**
+    * Laplacian score of a feature f from its (uncentered) quadratic forms. L.1 = 0, so centering f does not change f'Lf,
+    * and centering subtracts (f'd)^2 / 1'd from f'Df.
+    * @param fDf f'Df
+    * @param fd f'D1
+    * @param fSf f'Sf
+    * @param degreeSum 1'D1
+    * @return (f'Df - f'Sf) / (f'Df - (f'D1)^2 / 1'D1)
+    */
+   static double laplacianScore(double fDf, double fd, double fSf, double degreeSum){
+       double numerator = fDf - fSf;
+       double denominator = fDf - fd * fd / degreeSum;
+       return numerator / denominator;
+   }
+
     /**
      * Sorts a map with key => double in descending order (switch o2 and o1 for ascending, if needed)
      * @param sort Map that is to be sorted
@@ -268,32 +308,28 @@ public class LaplacianScore {
     }
     
     /**
-     * Computes the cooccurrence matrix for all tags
-     * @param tagsWithIds
-     * @param imageTags
-     * @return cooccurrence matrix as Jama Matrix
+     * Compares two tag selections, e.g. the one of a sparse similarity graph (GRAPH_NEIGHBORS, GRAPH_THRESHOLD) against the
+     * one of the dense cosine graph
+     * @param percentage percentage of tags selected (as in selectBestLSTags)
+     * @param tagsWithLS map <key=tag,value=LS score> sorted by descending Laplacian scores
+     * @param baselineTagsWithLS map of the baseline, sorted the same way
+     * @return fraction of the tags selected from the baseline that are also selected from tagsWithLS (1 if both selections are equal)
      */
-    private static Matrix cooccurrenceMatrix(Map<Integer,String> tagsWithIds, Map imageTags){
-       
-       int mapSize = tagsWithIds.size();
-       Matrix cooccurrences = new Matrix(mapSize,mapSize);
-       
-       for(int i = 0; i < tagsWithIds.size(); i++){
-           for(int j = i ; j < tagsWithIds.size() ; j++){
-               if((i == j)){
-                   //cooccurrence of a term with itself is 0
-                   cooccurrences.set(i, i, 0);
-               }else{
-                   int cooccurrence = DistancesMT.cooccurrenceBetweenTerms(tagsWithIds.get(i), tagsWithIds.get(j), imageTags);
-                   //cooccurrence is symmetrical
-                   cooccurrences.set(i, j, cooccurrence);
-                   cooccurrences.set(j, i, cooccurrence);
-               }
-           }
-       }
-       return cooccurrences;
-   }
-    
+    public static double selectionOverlap(int percentage, Map tagsWithLS, Map baselineTagsWithLS){
+        Set selection = new HashSet(selectBestLSTags(percentage, tagsWithLS));
+        ArrayList baseline = selectBestLSTags(percentage, baselineTagsWithLS);
+        if(baseline.isEmpty()){
+            return 1;
+        }
+        int common = 0;
+        for(Object tag : baseline){
+            if(selection.contains(tag)){
+                common++;
+            }
+        }
+        return (double) common / baseline.size();
+    }
+
      public static ArrayList selectBestLSTags(int percentage, Map tagsWithLS){
         
         ArrayList representativeTags = new ArrayList<>();
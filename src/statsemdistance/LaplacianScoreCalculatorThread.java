@@ -1,50 +1,63 @@
 package statsemdistance;
 
-import Jama.Matrix;
-import java.util.Map;
-
 /**
  * This class is used to compute the Laplacian score of one tag/feature using multithreading.
- * Uses Jama Matrix.
+ * The feature vector f is the (sparse) cooccurrence column of the tag, D is kept as the degree vector d and L = D - S is
+ * never built: since L.1 = 0, the centered numerator is f'Lf = f'Df - f'Sf and the centered denominator is
+ * f'Df - (f'd)^2 / 1'd, so only the non zero entries of f are visited.
  * @author mgarchery
  */
 public class LaplacianScoreCalculatorThread extends Thread{
-    
-    private Matrix feature;
-    private Matrix laplacian;
-    private Matrix diagonal;
-    private Matrix ones;
-    private Matrix onesT;
-    private Map tagsWithLS;
-    private String tag;
-    
-    public LaplacianScoreCalculatorThread(String tag, Matrix feature, Matrix laplacian, Matrix diagonal, Matrix ones, Matrix onesT, Map<String,Double> tagsWithLS){
-        this.tag = tag;
-        this.feature = feature;
-        this.laplacian = laplacian;
-        this.diagonal = diagonal;
-        this.ones = ones;
-        this.onesT = onesT;
-        this.tagsWithLS = tagsWithLS;
+
+    private final int id;
+    private final SparseCooccurrence cooccurrences;
+    private final DenseMatrix similarities;
+    private final double[] degrees;
+    private final double degreeSum;
+    private final double[] scores;
+
+    /**
+     * @param id tag id (index of the feature column)
+     * @param cooccurrences sparse symmetric cooccurrence matrix, column id is the feature vector
+     * @param similarities cosine similarity matrix
+     * @param degrees row sums of the similarity matrix
+     * @param degreeSum sum of all degrees
+     * @param scores array receiving the score at index id
+     */
+    public LaplacianScoreCalculatorThread(int id, SparseCooccurrence cooccurrences, DenseMatrix similarities, double[] degrees, double degreeSum, double[] scores){
+        this.id = id;
+        this.cooccurrences = cooccurrences;
+        this.similarities = similarities;
+        this.degrees = degrees;
+        this.degreeSum = degreeSum;
+        this.scores = scores;
     }
-    
+
     @Override
     public void run() {
-        
-        //Compute Laplacian score
-        Matrix featureT = feature.transpose();
-        double numerator = featureT.times(diagonal).times(ones).get(0,0);
-        double denominator = onesT.times(diagonal).times(ones).get(0,0);
-          
-        Matrix f_ = feature.minus(ones.times(numerator/denominator));
-        Matrix f_T = f_.transpose();
-           
-        double laplacianNumerator = f_T.times(laplacian).times(f_).get(0,0);
-        double laplacianDenominator = f_T.times(diagonal).times(f_).get(0,0);
-        double laplacianScore = laplacianNumerator/laplacianDenominator;
-        
-        //Add score to the map
-        tagsWithLS.put(tag, laplacianScore);
+        int[] offsets = cooccurrences.offsets();
+        int[] columns = cooccurrences.columns();
+        int[] values = cooccurrences.values();
+        int from = offsets[id];
+        int to = offsets[id + 1];
+
+        double fd = 0;   // f'D1
+        double fDf = 0;  // f'Df
+        double fSf = 0;  // f'Sf
+        for (int a = from; a < to; a++) {
+            int i = columns[a];
+            double fi = values[a];
+            fd += fi * degrees[i];
+            fDf += fi * fi * degrees[i];
+
+            double product = 0;
+            for (int b = from; b < to; b++) {
+                product += similarities.get(i, columns[b]) * values[b];
+            }
+            fSf += fi * product;
+        }
+
+        scores[id] = LaplacianScore.laplacianScore(fDf, fd, fSf, degreeSum);
     }
-    
+
 }
@@ -0,0 +1,185 @@
+package statsemdistance;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the Laplacian scores of all features at once. The features are the columns F_j of the (symmetric) cooccurrence
+ * matrix, and a score only needs three column reductions:
+ *   (F'D1)_j = sum_i F_ij d_i,   (F'DF)_jj = sum_i F_ij^2 d_i,   (F'SF)_jj = sum_i F_ij (SF)_ij
+ * They are accumulated in one pass over the rows of S: row S_i is read once and folded into all the features j with
+ * F_ij != 0, (SF)_ij being S_i . F_j. Only the entries of SF where F is non zero are computed (a masked S.F product).
+ * Chunks of rows run on the fork-join pool of Multithreading, every chunk has its own accumulators, merged two by two.
+ * The rows of S come either from the full similarity matrix or, in streaming mode, are computed one at a time from the
+ * cooccurrences and discarded once folded: the degrees only need the row itself, so S never has to be built.
+ * In graph mode, S is a sparse SimilarityGraph (k nearest neighbours and/or similarity threshold).
+ * @author mgarchery
+ */
+public class LaplacianScoreKernel {
+
+    private static final int MIN_CHUNK_ROWS = 64;
+
+    private final SparseCooccurrence cooccurrences;
+    private final DenseMatrix similarities; // null in streaming and graph modes
+    private final CosineGram gram;         // computes the rows in streaming mode
+    private final SimilarityGraph graph;   // sparse rows in graph mode
+    private final double[] degrees;        // filled row by row in streaming and graph modes
+
+    private LaplacianScoreKernel(SparseCooccurrence cooccurrences, DenseMatrix similarities, CosineGram gram,
+                                 SimilarityGraph graph, double[] degrees) {
+        this.cooccurrences = cooccurrences;
+        this.similarities = similarities;
+        this.gram = gram;
+        this.graph = graph;
+        this.degrees = degrees;
+    }
+
+    /**
+     * Computes the Laplacian scores of all tags
+     * @param cooccurrences sparse symmetric cooccurrence matrix, column j is the feature vector of tag j
+     * @param similarities cosine similarity matrix
+     * @param degrees row sums of the similarity matrix
+     * @return scores indexed by tag id
+     */
+    public static double[] scores(SparseCooccurrence cooccurrences, DenseMatrix similarities, double[] degrees) {
+        return new LaplacianScoreKernel(cooccurrences, similarities, null, null, degrees).scores();
+    }
+
+    /**
+     * Computes the Laplacian scores of all tags without ever building the similarity matrix: every row of the cosine
+     * similarity matrix is computed (see CosineGram.fullRow), folded into the degrees and the reductions, and discarded.
+     * Besides the cooccurrences, memory is O(n) per chunk of rows. Scores are the same as the ones of scores().
+     * @param cooccurrences sparse symmetric cooccurrence matrix, column j is the feature vector of tag j
+     * @return scores indexed by tag id
+     */
+    public static double[] streamingScores(SparseCooccurrence cooccurrences) {
+        int size = cooccurrences.size();
+        CosineGram gram = new CosineGram(cooccurrences, null);
+        return new LaplacianScoreKernel(cooccurrences, null, gram, null, new double[size]).scores();
+    }
+
+    /**
+     * Computes the Laplacian scores of all tags over a sparse similarity graph (S replaced by the graph weights, degrees
+     * being the graph degrees)
+     * @param cooccurrences sparse symmetric cooccurrence matrix, column j is the feature vector of tag j
+     * @param graph sparse symmetric similarity graph
+     * @return scores indexed by tag id
+     */
+    public static double[] scores(SparseCooccurrence cooccurrences, SimilarityGraph graph) {
+        return new LaplacianScoreKernel(cooccurrences, null, null, graph, new double[graph.size()]).scores();
+    }
+
+    private double[] scores() {
+        int size = cooccurrences.size();
+        int chunk = Math.max(MIN_CHUNK_ROWS, size / (Multithreading.PARALLELISM * 4));
+        Sums sums = Multithreading.getForkJoinPool().invoke(new RowsTask(0, size, chunk));
+
+        double degreeSum = 0;
+        for (int i = 0; i < size; i++) {
+            degreeSum += degrees[i];
+        }
+
+        double[] scores = new double[size];
+        for (int j = 0; j < size; j++) {
+            scores[j] = LaplacianScore.laplacianScore(sums.fDf[j], sums.fd[j], sums.fSf[j], degreeSum);
+        }
+        return scores;
+    }
+
+    /**
+     * Partial column reductions of a range of rows
+     */
+    private static class Sums {
+
+        final double[] fd;
+        final double[] fDf;
+        final double[] fSf;
+
+        Sums(int size) {
+            fd = new double[size];
+            fDf = new double[size];
+            fSf = new double[size];
+        }
+
+        void add(Sums other) {
+            for (int j = 0; j < fd.length; j++) {
+                fd[j] += other.fd[j];
+                fDf[j] += other.fDf[j];
+                fSf[j] += other.fSf[j];
+            }
+        }
+    }
+
+    /**
+     * Folds the rows from (inclusive) to to (exclusive), splitting them in two halves until they are small enough
+     */
+    private class RowsTask extends RecursiveTask<Sums> {
+
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        RowsTask(int from, int to, int chunk) {
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Sums compute() {
+            if (to - from <= chunk) {
+                Sums sums = new Sums(cooccurrences.size());
+                if (similarities != null) {
+                    double[] buffer = new double[cooccurrences.size()];
+                    for (int i = from; i < to; i++) {
+                        addRow(i, similarities.row(i, buffer), degrees[i], sums);
+                    }
+                } else if (graph != null) {
+                    double[] row = new double[cooccurrences.size()];
+                    for (int i = from; i < to; i++) {
+                        graph.scatter(i, row);
+                        degrees[i] = graph.degree(i);
+                        addRow(i, row, degrees[i], sums);
+                        graph.clear(i, row);
+                    }
+                } else {
+                    CosineGram.RowBuffer buffer = new CosineGram.RowBuffer(cooccurrences.size());
+                    for (int i = from; i < to; i++) {
+                        degrees[i] = gram.fullRow(i, buffer);
+                        addRow(i, buffer.row, degrees[i], sums);
+                    }
+                }
+                return sums;
+            }
+            int middle = (from + to) >>> 1;
+            RowsTask left = new RowsTask(from, middle, chunk);
+            left.fork();
+            Sums sums = new RowsTask(middle, to, chunk).compute();
+            sums.add(left.join());
+            return sums;
+        }
+    }
+
+    /**
+     * Folds row i of S (with its degree) into the accumulators of all the features having a non zero entry i
+     */
+    private void addRow(int i, double[] row, double degree, Sums sums) {
+        int[] offsets = cooccurrences.offsets();
+        int[] columns = cooccurrences.columns();
+        int[] values = cooccurrences.values();
+
+        for (int a = offsets[i]; a < offsets[i + 1]; a++) {
+            int j = columns[a];      // F_ij = C_ij = C_ji != 0
+            double fij = values[a];
+
+            /* (SF)_ij = S_i . F_j */
+            double product = 0;
+            for (int b = offsets[j]; b < offsets[j + 1]; b++) {
+                product += row[columns[b]] * values[b];
+            }
+
+            sums.fd[j] += fij * degree;
+            sums.fDf[j] += fij * fij * degree;
+            sums.fSf[j] += fij * product;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package statsemdistance;
+
+/**
+ * Dense matrix storage used by the Laplacian score when LaplacianScore.PACKED_SIMILARITIES is off, behind which the matrix
+ * library can be switched (see LaplacianScore.BACKEND): JamaBackend for reference, FlatBackend for flat row-major arrays.
+ * The similarity matrix is filled from the sparse SparseCooccurrence rows (CosineGram) and only its row sums (degrees)
+ * and its rows (LaplacianScoreKernel) are read, so these are the only operations a backend provides.
+ * @author mgarchery
+ */
+public interface MatrixBackend {
+
+    /**
+     * @return a new rows x columns matrix filled with zeros
+     */
+    DenseMatrix zeros(int rows, int columns);
+
+    /**
+     * @return sum of every row of A (summed by ascending column)
+     */
+    double[] rowSums(DenseMatrix a);
+}
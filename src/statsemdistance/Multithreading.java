@@ -2,6 +2,7 @@ package statsemdistance;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 
@@ -17,6 +18,9 @@ public class Multithreading {
     private static final long KEEP_ALIVE_TIME = 0;
     private static BlockingQueue<Runnable> blockingQueue;
     private static ImageSignatureThreadPoolExecutor executor;
+    private static ForkJoinPool forkJoinPool;
+    
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors(); // worker threads of the fork-join pool
     
     /**
      * Initializes the tasks queue with the given size and prepares the executor for running.
@@ -31,6 +35,17 @@ public class Multithreading {
         return executor;
     }
     
+    /**
+     * Returns the shared fork-join pool used for divide and conquer computations (created on first use with PARALLELISM threads).
+     * @return the fork-join pool
+     */
+    public static synchronized ForkJoinPool getForkJoinPool(){
+        if(forkJoinPool == null){
+            forkJoinPool = new ForkJoinPool(PARALLELISM);
+        }
+        return forkJoinPool;
+    }
+    
     /**
      * Waits for the tasks currently in queue to be terminated and then returns. 
      */
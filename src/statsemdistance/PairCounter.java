@@ -0,0 +1,135 @@
+package statsemdistance;
+
+import java.util.Arrays;
+
+/**
+ * Counts occurrences of (i, j) pairs of tag ids in an open addressing hash table of primitive longs and ints.
+ * The pair is stored once, as i < j.
+ * @author mgarchery
+ */
+public class PairCounter {
+
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int[] counts;
+    private int size;
+
+    /**
+     * @param expectedPairs number of distinct pairs that will be counted (only used for sizing)
+     */
+    public PairCounter(int expectedPairs) {
+        int capacity = 16;
+        while (capacity < expectedPairs * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        counts = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Increments the count of the pair (i, j), i and j must be different
+     */
+    public void increment(int i, int j) {
+        add(i < j ? key(i, j) : key(j, i), 1);
+    }
+
+    /**
+     * Adds all the counts of another counter to this one
+     * @param other counter to merge into this one
+     */
+    public void merge(PairCounter other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != EMPTY) {
+                add(other.keys[slot], other.counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return number of distinct pairs counted
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return all the counted pairs encoded with key(i, j), in ascending order
+     */
+    public long[] sortedPairs() {
+        long[] pairs = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                pairs[n++] = key;
+            }
+        }
+        Arrays.sort(pairs);
+        return pairs;
+    }
+
+    /**
+     * @param pair a pair encoded with key(i, j)
+     * @return its count, 0 if it was never counted
+     */
+    public int count(long pair) {
+        int mask = keys.length - 1;
+        for (int slot = hash(pair) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == pair) {
+                return counts[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return 0;
+            }
+        }
+    }
+
+    static long key(int i, int j) {
+        return ((long) i << 32) | j;
+    }
+
+    static int first(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int second(long key) {
+        return (int) key;
+    }
+
+    private void add(long key, int count) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                counts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        counts[slot] = count;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new long[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                add(oldKeys[slot], oldCounts[slot]);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,248 @@
+package statsemdistance;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sparse symmetric similarity graph of all tags, as used by the Laplacian score literature instead of the dense cosine
+ * graph: every tag keeps only its k most similar tags (k nearest neighbours) and/or the tags whose similarity is at least
+ * a threshold. The graph is symmetrized by union (i and j are linked if either one kept the other), weights are the cosine
+ * similarities. Stored as sparse rows (CSR) like SparseCooccurrence, the diagonal is always 0.
+ * The rows of the cosine similarity matrix are computed one at a time (CosineGram.fullRow), the dense matrix is never built.
+ * @author mgarchery
+ */
+public class SimilarityGraph {
+
+    private static final int MIN_CHUNK_ROWS = 64;
+
+    private final int size;
+    private final int[] offsets;
+    private final int[] columns;
+    private final double[] weights;
+
+    private SimilarityGraph(int size, int[] offsets, int[] columns, double[] weights) {
+        this.size = size;
+        this.offsets = offsets;
+        this.columns = columns;
+        this.weights = weights;
+    }
+
+    /**
+     * Builds the graph
+     * @param cooccurrences sparse symmetric cooccurrence matrix
+     * @param neighbors number of most similar tags kept per tag, 0 to keep all of them
+     * @param threshold minimum similarity of the kept tags, 0 to keep all of them
+     * @return the symmetric graph
+     */
+    public static SimilarityGraph build(SparseCooccurrence cooccurrences, int neighbors, double threshold) {
+        int size = cooccurrences.size();
+        CosineGram gram = new CosineGram(cooccurrences, null);
+
+        /* kept neighbours of every row, by ascending column */
+        int[][] keptColumns = new int[size][];
+        double[][] keptWeights = new double[size][];
+        int chunk = Math.max(MIN_CHUNK_ROWS, size / (Multithreading.PARALLELISM * 4));
+        Multithreading.getForkJoinPool().invoke(new SelectTask(gram, size, neighbors, threshold, keptColumns, keptWeights, 0, size, chunk));
+
+        /* symmetrize: row i is the union of the neighbours kept by i and of the tags that kept i */
+        int[] inDegrees = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            for (int j : keptColumns[i]) {
+                inDegrees[j + 1]++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            inDegrees[i + 1] += inDegrees[i];
+        }
+        int[] inColumns = new int[inDegrees[size]];
+        double[] inWeights = new double[inDegrees[size]];
+        int[] position = Arrays.copyOf(inDegrees, size);
+        for (int i = 0; i < size; i++) {          // ascending i, so in-lists are sorted
+            for (int t = 0; t < keptColumns[i].length; t++) {
+                int j = keptColumns[i][t];
+                inColumns[position[j]] = i;
+                inWeights[position[j]++] = keptWeights[i][t];
+            }
+        }
+
+        int[] offsets = new int[size + 1];
+        int[] columns = new int[inColumns.length * 2];
+        double[] weights = new double[columns.length];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            offsets[i] = count;
+            int[] out = keptColumns[i];
+            int a = 0, b = inDegrees[i], bEnd = inDegrees[i + 1];
+            while (a < out.length || b < bEnd) {
+                if (b == bEnd || (a < out.length && out[a] < inColumns[b])) {
+                    columns[count] = out[a];
+                    weights[count++] = keptWeights[i][a++];
+                } else if (a == out.length || inColumns[b] < out[a]) {
+                    columns[count] = inColumns[b];
+                    weights[count++] = inWeights[b++];
+                } else {
+                    /* kept by both, same similarity */
+                    columns[count] = out[a];
+                    weights[count++] = keptWeights[i][a++];
+                    b++;
+                }
+            }
+        }
+        offsets[size] = count;
+
+        return new SimilarityGraph(size, offsets, Arrays.copyOf(columns, count), Arrays.copyOf(weights, count));
+    }
+
+    /**
+     * Computes and prunes the similarity rows from (inclusive) to to (exclusive)
+     */
+    private static class SelectTask extends RecursiveAction {
+
+        private final CosineGram gram;
+        private final int size;
+        private final int neighbors;
+        private final double threshold;
+        private final int[][] keptColumns;
+        private final double[][] keptWeights;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        SelectTask(CosineGram gram, int size, int neighbors, double threshold, int[][] keptColumns, double[][] keptWeights,
+                   int from, int to, int chunk) {
+            this.gram = gram;
+            this.size = size;
+            this.neighbors = neighbors;
+            this.threshold = threshold;
+            this.keptColumns = keptColumns;
+            this.keptWeights = keptWeights;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunk) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SelectTask(gram, size, neighbors, threshold, keptColumns, keptWeights, from, middle, chunk),
+                          new SelectTask(gram, size, neighbors, threshold, keptColumns, keptWeights, middle, to, chunk));
+                return;
+            }
+
+            CosineGram.RowBuffer buffer = new CosineGram.RowBuffer(size);
+            int[] candidates = new int[size];
+            for (int i = from; i < to; i++) {
+                gram.fullRow(i, buffer);
+
+                int count = 0;
+                for (int t = 0; t < buffer.count(); t++) {
+                    int j = buffer.column(t);
+                    if (buffer.row[j] >= threshold) {
+                        candidates[count++] = j;
+                    }
+                }
+                if (neighbors > 0 && count > neighbors) {
+                    count = selectNearest(candidates, count, neighbors, buffer.row);
+                    Arrays.sort(candidates, 0, count);
+                }
+
+                keptColumns[i] = Arrays.copyOf(candidates, count);
+                keptWeights[i] = new double[count];
+                for (int t = 0; t < count; t++) {
+                    keptWeights[i][t] = buffer.row[candidates[t]];
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the k most similar candidates (ties broken by smaller column) to the front, with a min-heap of size k
+     * @return k
+     */
+    private static int selectNearest(int[] candidates, int count, int k, double[] row) {
+        int[] heap = new int[k];
+        for (int t = 0; t < k; t++) {
+            heap[t] = candidates[t];
+        }
+        for (int t = k / 2 - 1; t >= 0; t--) {
+            siftDown(heap, t, k, row);
+        }
+        for (int t = k; t < count; t++) {
+            if (less(heap[0], candidates[t], row)) {
+                heap[0] = candidates[t];
+                siftDown(heap, 0, k, row);
+            }
+        }
+        System.arraycopy(heap, 0, candidates, 0, k);
+        return k;
+    }
+
+    /** @return true if column a is less similar than column b (or as similar and with a bigger column) */
+    private static boolean less(int a, int b, double[] row) {
+        return row[a] < row[b] || (row[a] == row[b] && a > b);
+    }
+
+    private static void siftDown(int[] heap, int t, int k, double[] row) {
+        while (true) {
+            int smallest = t;
+            int left = 2 * t + 1, right = left + 1;
+            if (left < k && less(heap[left], heap[smallest], row)) {
+                smallest = left;
+            }
+            if (right < k && less(heap[right], heap[smallest], row)) {
+                smallest = right;
+            }
+            if (smallest == t) {
+                return;
+            }
+            int swap = heap[t];
+            heap[t] = heap[smallest];
+            heap[smallest] = swap;
+            t = smallest;
+        }
+    }
+
+    /**
+     * @return number of rows (and columns) of the graph
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of edges, each one counted in both directions
+     */
+    public int nonZeros() {
+        return columns.length;
+    }
+
+    /**
+     * @return degree of node i (sum of its edge weights, by ascending column)
+     */
+    public double degree(int i) {
+        double degree = 0;
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            degree += weights[k];
+        }
+        return degree;
+    }
+
+    /**
+     * Writes row i into a dense buffer (which must be 0 on all the columns of the row)
+     */
+    void scatter(int i, double[] row) {
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            row[columns[k]] = weights[k];
+        }
+    }
+
+    /**
+     * Resets the entries written by scatter(i, row) to 0
+     */
+    void clear(int i, double[] row) {
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            row[columns[k]] = 0;
+        }
+    }
+}
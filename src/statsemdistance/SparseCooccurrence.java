@@ -0,0 +1,166 @@
+package statsemdistance;
+
+import Jama.Matrix;
+
+/**
+ * Symmetric cooccurrence matrix of all tags, stored as sparse rows (CSR): the non zero entries of row i are
+ * columns[offsets[i]] ... columns[offsets[i+1] - 1] (ascending) with their counts in values.
+ * Both halves are stored so that every row is also the corresponding column. The diagonal is always 0.
+ * @author mgarchery
+ */
+public class SparseCooccurrence {
+
+    private final int size;
+    private final int[] offsets;
+    private final int[] columns;
+    private final int[] values;
+
+    SparseCooccurrence(int size, int[] offsets, int[] columns, int[] values) {
+        this.size = size;
+        this.offsets = offsets;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Builds the symmetric matrix from counted pairs
+     * @param size number of tags
+     * @param counter counts of all pairs i < j
+     * @return the sparse cooccurrence matrix
+     */
+    static SparseCooccurrence fromPairs(int size, PairCounter counter) {
+        long[] pairs = counter.sortedPairs();
+
+        int[] offsets = new int[size + 1];
+        for (long pair : pairs) {
+            offsets[PairCounter.first(pair) + 1]++;
+            offsets[PairCounter.second(pair) + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] columns = new int[pairs.length * 2];
+        int[] values = new int[pairs.length * 2];
+        int[] position = new int[size];
+        System.arraycopy(offsets, 0, position, 0, size);
+
+        /* Pairs are sorted by (i, j): lower half entries (j, i) first, then upper half entries (i, j), keeps rows sorted */
+        for (long pair : pairs) {
+            int j = PairCounter.second(pair);
+            columns[position[j]] = PairCounter.first(pair);
+            values[position[j]++] = counter.count(pair);
+        }
+        for (long pair : pairs) {
+            int i = PairCounter.first(pair);
+            columns[position[i]] = PairCounter.second(pair);
+            values[position[i]++] = counter.count(pair);
+        }
+        return new SparseCooccurrence(size, offsets, columns, values);
+    }
+
+    /**
+     * @return number of rows (and columns) of the matrix
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of non zero entries (each pair counts twice)
+     */
+    public int nonZeros() {
+        return columns.length;
+    }
+
+    /**
+     * @return cooccurrence count of tags i and j
+     */
+    public int get(int i, int j) {
+        int low = offsets[i], high = offsets[i + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (columns[middle] < j) {
+                low = middle + 1;
+            } else if (columns[middle] > j) {
+                high = middle - 1;
+            } else {
+                return values[middle];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return euclidean norm of row i
+     */
+    public double rowNorm(int i) {
+        double sum = 0;
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            sum += (double) values[k] * values[k];
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * @return dot product of rows i and j
+     */
+    public double rowDot(int i, int j) {
+        int a = offsets[i], aEnd = offsets[i + 1];
+        int b = offsets[j], bEnd = offsets[j + 1];
+        double product = 0;
+
+        while (a < aEnd && b < bEnd) {
+            if (columns[a] == columns[b]) {
+                product += (double) values[a++] * values[b++];
+            } else if (columns[a] < columns[b]) {
+                a++;
+            } else {
+                b++;
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Row i (or column i, the matrix is symmetric) as a dense column vector
+     * @param i row index
+     * @return size x 1 Jama Matrix
+     */
+    public Matrix column(int i) {
+        Matrix column = new Matrix(size, 1);
+        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+            column.set(columns[k], 0, values[k]);
+        }
+        return column;
+    }
+
+    /**
+     * Dense view of the matrix, kept for compatibility with code working on Jama matrixes
+     * @return cooccurrence matrix as Jama Matrix
+     */
+    public Matrix toMatrix() {
+        Matrix dense = new Matrix(size, size);
+        for (int i = 0; i < size; i++) {
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                dense.set(i, columns[k], values[k]);
+            }
+        }
+        return dense;
+    }
+
+    /** Row offsets, shared array, do not modify. */
+    int[] offsets() {
+        return offsets;
+    }
+
+    /** Column indices of all rows, shared array, do not modify. */
+    int[] columns() {
+        return columns;
+    }
+
+    /** Counts of all rows, shared array, do not modify. */
+    int[] values() {
+        return values;
+    }
+}
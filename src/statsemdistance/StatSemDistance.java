@@ -22,27 +22,41 @@ public class StatSemDistance {
         int nearestNeighbors = 10;
         int shifting = 5;
         
-        Map imagesTags = DistancesMT.imageTagsFromFile(filename + ".csv");
-        DistancesMT.printMap(imagesTags);
+        TagCorpus corpus = DistancesMT.corpusFromFile(filename + ".csv");
         
-        if (DistancesMT.PRINT == 1)
-            System.out.println("ImageTags size : " + imagesTags.size());
+        if (DistancesMT.PRINT == 1){
+            DistancesMT.printMap(corpus.toMap());
+            System.out.println("ImageTags size : " + corpus.imageCount());
+        }
+        
+        /* Tag ids, shared by the LS selection, the statistical and the semantic distance matrixes */
+        TagDictionary dictionary = corpus.dictionary();
+        Map<Integer,String> tagsWithIds = dictionary.asMap();
+        //System.out.println("Found " + tagsWithIds.size() + " unique tags");
 
         Map<Integer,Double> scores = new HashMap<>();
         
         /* Get representative tags - choose between one of the three selection methods*/
         
         //most frequent tags
-        //Map representativeTags = DistancesMT.getMostFrequentTags(imagesTags);
+        //Map representativeTags = DistancesMT.getMostFrequentTags(corpus);
         
         //most frequent tags with shifting
-        //Map representativeTags = DistancesMT.getMostFrequentTagsWithShifting(imagesTags, shifting);
+        //Map representativeTags = DistancesMT.getMostFrequentTagsWithShifting(corpus, shifting);
         
-        //LS feature selection
-        Map representativeTags = LaplacianScore.getTagsWithLaplacianScores(imagesTags);
+        //LS feature selection (the cooccurrence matrix is shared with the statistical distances)
+        SparseCooccurrence cooccurrences = CooccurrenceAccumulator.accumulate(corpus, LaplacianScore.PARALLEL_COOCCURRENCES);
+        Map representativeTags = LaplacianScore.getTagsWithLaplacianScores(corpus, cooccurrences);
         //DistancesMT.writeScoresIntoFile(representativeTags, filename + "_LS_scores.csv");
         
         
+        /* Semantic distance matrix, the same for every percentage */
+        List<Integer> commonTags = new ArrayList<>();
+        SymmetricMatrix semanticDistances = DistancesMT.getSemanticDistancesFromFile(filename + "_semDistances.csv", dictionary, commonTags);
+        
+        /* Every selection extends the previous one: distances are updated with the new representative tags only */
+        DistanceSweep sweep = new DistanceSweep(corpus, cooccurrences, corpus.tagFrequencies());
+        
         for(int tagPercentage = 1; tagPercentage < 26; tagPercentage++){
             
             //ArrayList tagsSelection = DistancesMT.selectMostFrequentTags(tagPercentage, representativeTags); //for highest frequency selection
@@ -51,16 +65,10 @@ public class StatSemDistance {
             //System.out.println("Most representative Tags of input: " + tagsSelection);
             System.out.println(tagsSelection.size());
             
-            Map<Integer,String> tagsWithIds = LaplacianScore.allTagsWithIds(imagesTags);
-            //System.out.println("Found " + tagsWithIds.size() + " unique tags");
-
             /* Statistical Distance Matrix */
             //DistancesMT.printDistanceMatrix(DistancesMT.calculcateDistanceMatrix(imagesTags, representativeTags));
-            double[][] statisticalDistances = DistancesMT.calculcateDistanceMatrix(tagsWithIds, imagesTags, tagsSelection, filename);
-
-            /* Semantic distance matrix */
-            List<Integer> commonTags = new ArrayList<>();
-            double[][] semanticDistances = DistancesMT.getSemanticDistancesFromFile(filename + "_semDistances.csv", tagsWithIds, commonTags);
+            //SymmetricMatrix statisticalDistances = DistancesMT.calculcateDistanceMatrix(tagsWithIds, corpus, tagsSelection, filename);
+            SymmetricMatrix statisticalDistances = sweep.distances(tagsSelection);
 
             //double averageJaccardDistance = DistancesMT.averageJaccardDistance(kNearestNeighbors, statisticalDistances, semanticDistances, commonTags);
             double sumOfListsDifferenceDistances = DistancesMT.sumOfKNearestTermsDistances(nearestNeighbors, statisticalDistances, semanticDistances, commonTags, tagsWithIds);
@@ -73,6 +81,8 @@ public class StatSemDistance {
             //DistancesMT.writeDistanceMatrixIntoFile(semanticDistances, tagsWithIds, "semDistances_"+ tagPercentage +"_.csv");
             //DistancesMT.writeDistanceMatrixIntoFile(statisticalDistances, tagsWithIds, "statDistances_"+ tagPercentage +".csv");
         }
+        sweep.close();
+        semanticDistances.close();
         
         System.out.println("Percentage of representative tags - Score");
         for(Integer percentage : scores.keySet()){
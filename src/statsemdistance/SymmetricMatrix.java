@@ -0,0 +1,225 @@
+package statsemdistance;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Symmetric square matrix (similarities, distances) storing only its upper triangle, diagonal included: (i, j) and
+ * (j, i) are the same entry, so n x n entries take n (n + 1) / 2 cells instead of n^2, in double or (optionally) float
+ * precision, i.e. about 2 or 4 times less memory than a double[][].
+ * The packed rows are stored one after the other (row i holds the columns i ... n - 1) off-heap, in direct buffers of at
+ * most SEGMENT_BYTES bytes, so big matrixes neither fill the heap nor are copied around by the garbage collector.
+ * Different threads may set different entries at the same time.
+ * Direct buffers are otherwise only freed when the garbage collector finds them unreachable, which may be long after
+ * a matrix is dropped: code creating matrixes repeatedly should reuse them or close() those it does not need anymore,
+ * otherwise the direct memory (-XX:MaxDirectMemorySize) can run out.
+ * @author mgarchery
+ */
+public class SymmetricMatrix implements DenseMatrix, AutoCloseable {
+
+    private static final int SEGMENT_BYTES = 1 << 30;
+    private static final Object UNSAFE;           // sun.misc.Unsafe, null if it cannot be used
+    private static final Method INVOKE_CLEANER;   // Unsafe.invokeCleaner(ByteBuffer), frees a direct buffer at once
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int size;
+    private final boolean singlePrecision;
+    private final int segmentShift;     // log2 of the number of cells per segment
+    private final int segmentMask;
+    private final DoubleBuffer[] doubles; // null in single precision
+    private final FloatBuffer[] floats;   // null in double precision
+    private final ByteBuffer[] segments;  // the direct buffers behind the views above, released by close()
+
+    /**
+     * Creates a size x size matrix filled with zeros
+     * @param size number of rows (and columns)
+     * @param singlePrecision true to store the entries as floats
+     */
+    public SymmetricMatrix(int size, boolean singlePrecision) {
+        this.size = size;
+        this.singlePrecision = singlePrecision;
+        int cellBytes = singlePrecision ? Float.BYTES : Double.BYTES;
+        this.segmentShift = Integer.numberOfTrailingZeros(SEGMENT_BYTES / cellBytes);
+        this.segmentMask = (1 << segmentShift) - 1;
+
+        long cells = (long) size * (size + 1) / 2;
+        int segments = (int) ((cells + segmentMask) >>> segmentShift);
+        doubles = singlePrecision ? null : new DoubleBuffer[segments];
+        floats = singlePrecision ? new FloatBuffer[segments] : null;
+        this.segments = new ByteBuffer[segments];
+        for (int s = 0; s < segments; s++) {
+            long segmentCells = Math.min(cells - ((long) s << segmentShift), 1L << segmentShift);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) (segmentCells * cellBytes)).order(ByteOrder.nativeOrder());
+            this.segments[s] = buffer;
+            if (singlePrecision) {
+                floats[s] = buffer.asFloatBuffer();
+            } else {
+                doubles[s] = buffer.asDoubleBuffer();
+            }
+        }
+    }
+
+    /**
+     * @return number of rows (and columns)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the entries are stored as floats
+     */
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * @return position of entry (i, j), i <= j, in the packed rows
+     */
+    private long cell(int i, int j) {
+        return (long) i * size - (long) i * (i - 1) / 2 + (j - i);
+    }
+
+    private double read(long cell) {
+        int segment = (int) (cell >>> segmentShift);
+        int offset = (int) cell & segmentMask;
+        return singlePrecision ? floats[segment].get(offset) : doubles[segment].get(offset);
+    }
+
+    /**
+     * Frees the off-heap memory of the matrix at once instead of waiting for the garbage collector (if the JVM does not
+     * allow it, the buffers are only dropped). The matrix cannot be used anymore and must not be used by other threads
+     * while it is closed; closing it again does nothing.
+     */
+    @Override
+    public void close() {
+        for (int s = 0; s < segments.length; s++) {
+            ByteBuffer buffer = segments[s];
+            if (buffer == null) {
+                continue;
+            }
+            /* views first, so that reading a closed matrix fails instead of reading freed memory */
+            segments[s] = null;
+            if (singlePrecision) {
+                floats[s] = null;
+            } else {
+                doubles[s] = null;
+            }
+            if (INVOKE_CLEANER != null) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    /* left to the garbage collector */
+                }
+            }
+        }
+    }
+
+    @Override
+    public int rows() {
+        return size;
+    }
+
+    @Override
+    public int columns() {
+        return size;
+    }
+
+    @Override
+    public double get(int i, int j) {
+        return i <= j ? read(cell(i, j)) : read(cell(j, i));
+    }
+
+    /**
+     * Sets entries (i, j) and (j, i)
+     */
+    @Override
+    public void set(int i, int j, double value) {
+        long cell = i <= j ? cell(i, j) : cell(j, i);
+        int segment = (int) (cell >>> segmentShift);
+        int offset = (int) cell & segmentMask;
+        if (singlePrecision) {
+            floats[segment].put(offset, (float) value);
+        } else {
+            doubles[segment].put(offset, value);
+        }
+    }
+
+    /**
+     * Fills the buffer with row i: the columns before i are read down column i of the upper triangle, the others are
+     * the packed row i itself
+     */
+    @Override
+    public double[] row(int i, double[] buffer) {
+        for (int j = 0; j < i; j++) {
+            buffer[j] = read(cell(j, i));
+        }
+        packedRow(i, buffer, i);
+        return buffer;
+    }
+
+    /**
+     * Sums of all rows in one sequential pass over the packed rows. Every row is summed by ascending column (its
+     * entries below the diagonal come first, from the rows above), like the rows of a full matrix.
+     * Packed row i is added to the sums of rows i + 1 ... by Kernels.axpy (element-wise, so SIMD does not change the sums).
+     * @return sum of every row
+     */
+    public double[] rowSums() {
+        double[] sums = new double[size];
+        double[] buffer = new double[size];
+        for (int i = 0; i < size; i++) {
+            packedRow(i, buffer, 0);
+            double sum = sums[i];
+            for (int t = 0; t < size - i; t++) {
+                sum += buffer[t];
+            }
+            sums[i] = sum;
+            Kernels.axpy(1.0, buffer, 1, sums, i + 1, size - i - 1);
+        }
+        return sums;
+    }
+
+    /**
+     * Copies the packed row i (columns i ... size - 1) into the buffer, starting at position
+     */
+    private void packedRow(int i, double[] buffer, int position) {
+        long cell = cell(i, i);
+        int remaining = size - i;
+        while (remaining > 0) {
+            int segment = (int) (cell >>> segmentShift);
+            int offset = (int) cell & segmentMask;
+            int length = (int) Math.min(remaining, (1L << segmentShift) - offset);
+            if (singlePrecision) {
+                FloatBuffer floatSegment = floats[segment];
+                for (int t = 0; t < length; t++) {
+                    buffer[position + t] = floatSegment.get(offset + t);
+                }
+            } else {
+                doubles[segment].get(offset, buffer, position, length);
+            }
+            position += length;
+            cell += length;
+            remaining -= length;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package statsemdistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compact representation of a set of images and their tags.
+ * Every tag is interned once to an integer id (ids are given in the order the tags are first met, which is also the
+ * order used by LaplacianScore.allTagsWithIds). Images are stored CSR-style: the sorted, duplicate free tag ids of
+ * image i are tags[offsets[i]] ... tags[offsets[i+1] - 1].
+ * @author mgarchery
+ */
+public class TagCorpus {
+
+    private static final int MIN_COUNT_CHUNK = 1 << 16;
+
+    private final String[] imageIds;
+    private final int[] offsets;
+    private final int[] tags;
+    private final TagDictionary dictionary;
+    private volatile TagPostings postings;
+    private volatile int[] frequencies;
+
+    private TagCorpus(String[] imageIds, int[] offsets, int[] tags, TagDictionary dictionary) {
+        this(imageIds, offsets, tags, dictionary, null);
+    }
+
+    /**
+     * Corpus from already built CSR arrays (e.g. read back from a CorpusSnapshot)
+     * @param frequencies tag frequencies if already known, null to count them on first use
+     */
+    TagCorpus(String[] imageIds, int[] offsets, int[] tags, TagDictionary dictionary, int[] frequencies) {
+        this.imageIds = imageIds;
+        this.offsets = offsets;
+        this.tags = tags;
+        this.dictionary = dictionary;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Builds a corpus from a map of image id => tag list, as returned by DistancesMT.imageTagsFromFile or DistancesMT.mapFromDatabase.
+     * Images and tags are interned in the iteration order of the map.
+     * @param imagesTags map with all the images and their corresponding tags
+     * @return the corpus
+     */
+    public static TagCorpus fromMap(Map imagesTags) {
+        Builder builder = new Builder();
+
+        Iterator itMap = imagesTags.entrySet().iterator();
+        while (itMap.hasNext()) {
+            Map.Entry pairFromMap = (Map.Entry) itMap.next();
+            builder.addImage(String.valueOf(pairFromMap.getKey()), (Collection<String>) pairFromMap.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return number of images in the corpus
+     */
+    public int imageCount() {
+        return imageIds.length;
+    }
+
+    /**
+     * @return number of unique tags in the corpus
+     */
+    public int tagCount() {
+        return dictionary.size();
+    }
+
+    /**
+     * @param image index of the image
+     * @return identifier of the image (first cell of its row in the input file)
+     */
+    public String imageId(int image) {
+        return imageIds[image];
+    }
+
+    /**
+     * @param id tag id
+     * @return tag with this id
+     */
+    public String tag(int id) {
+        return dictionary.tag(id);
+    }
+
+    /**
+     * @param tag a tag
+     * @return id of the tag, or -1 if the tag does not appear in the corpus
+     */
+    public int id(String tag) {
+        return dictionary.id(tag);
+    }
+
+    /**
+     * @return the dictionary tag <=> id of the corpus
+     */
+    public TagDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param image index of the image
+     * @return sorted tag ids of the image (copy)
+     */
+    public int[] tagsOf(int image) {
+        return Arrays.copyOfRange(tags, offsets[image], offsets[image + 1]);
+    }
+
+    /**
+     * @param image index of the image
+     * @param id tag id
+     * @return true if the image is tagged with this tag
+     */
+    public boolean contains(int image, int id) {
+        return Arrays.binarySearch(tags, offsets[image], offsets[image + 1], id) >= 0;
+    }
+
+    /**
+     * Counts in one pass the number of images tagged with each tag
+     * @return array indexed by tag id
+     */
+    public int[] tagFrequencies() {
+        return tagFrequencies(false);
+    }
+
+    /**
+     * Counts the number of images tagged with each tag (counted once, later calls return a copy of the first result)
+     * @param parallel true to count chunks of the corpus on the fork-join pool of Multithreading and sum the partial counts
+     * @return array indexed by tag id
+     */
+    public int[] tagFrequencies(boolean parallel) {
+        int[] result = frequencies;
+        if (result == null) {
+            if (parallel) {
+                int chunk = Math.max(MIN_COUNT_CHUNK, tags.length / (Multithreading.PARALLELISM * 4));
+                result = Multithreading.getForkJoinPool().invoke(new FrequencyTask(0, tags.length, chunk));
+            } else {
+                result = countTags(0, tags.length);
+            }
+            frequencies = result;
+        }
+        return result.clone();
+    }
+
+    private int[] countTags(int from, int to) {
+        int[] frequencies = new int[dictionary.size()];
+        for (int k = from; k < to; k++) {
+            frequencies[tags[k]]++;
+        }
+        return frequencies;
+    }
+
+    /**
+     * Counts the tags of a range of the tags array, splitting it in two halves until it is small enough
+     */
+    private class FrequencyTask extends RecursiveTask<int[]> {
+
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        FrequencyTask(int from, int to, int chunk) {
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= chunk) {
+                return countTags(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            FrequencyTask left = new FrequencyTask(from, middle, chunk);
+            left.fork();
+            int[] frequencies = new FrequencyTask(middle, to, chunk).compute();
+            int[] leftFrequencies = left.join();
+            for (int tag = 0; tag < frequencies.length; tag++) {
+                frequencies[tag] += leftFrequencies[tag];
+            }
+            return frequencies;
+        }
+    }
+
+    /**
+     * Returns the inverted index of the corpus, built on first use
+     * @return postings lists of all tags
+     */
+    public TagPostings postings() {
+        TagPostings result = postings;
+        if (result == null) {
+            synchronized (this) {
+                result = postings;
+                if (result == null) {
+                    result = new TagPostings(this);
+                    postings = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * CSR offsets, image i owns tags()[offsets()[i]] to tags()[offsets()[i+1] - 1]. Shared array, do not modify.
+     */
+    int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * Tag ids of all images, concatenated. Shared array, do not modify.
+     */
+    int[] tags() {
+        return tags;
+    }
+
+    /**
+     * Maps all tags to their id (the tag position in the cooccurrence, similarity and distance matrixes)
+     * @return map with <key=id,value=tag>
+     */
+    public Map<Integer,String> tagsWithIds() {
+        return dictionary.asMap();
+    }
+
+    /**
+     * Converts the corpus back to the map representation (image id => tag list)
+     * @return map with all the images and their corresponding tags
+     */
+    public Map<String,ArrayList<String>> toMap() {
+        Map<String,ArrayList<String>> imagesTags = new HashMap<>();
+        for (int i = 0; i < imageIds.length; i++) {
+            ArrayList<String> tagList = new ArrayList<>(offsets[i + 1] - offsets[i]);
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                tagList.add(dictionary.tag(tags[k]));
+            }
+            imagesTags.put(imageIds[i], tagList);
+        }
+        return imagesTags;
+    }
+
+
+    /**
+     * Collects images one by one and interns their tags.
+     * Adding an image id that was already added replaces its tags (same behaviour as putting it again into a map),
+     * tags can also be added one by one to an image with addTag (e.g. when reading one row per image and tag from a database).
+     */
+    public static class Builder {
+
+        private final List<String> imageIds = new ArrayList<>();
+        private final Map<String,Integer> imageIndices = new HashMap<>();
+        private final List<int[]> imageTags = new ArrayList<>();
+        private int[] imageSizes = new int[16]; // number of used ids in each imageTags array
+        private final List<String> tagNames = new ArrayList<>();
+        private final Map<String,Integer> tagIds = new HashMap<>();
+        private boolean replaced = false;
+
+        /**
+         * Interns a tag
+         * @param tag the tag
+         * @return id of the tag
+         */
+        public int intern(String tag) {
+            Integer id = tagIds.get(tag);
+            if (id == null) {
+                id = tagNames.size();
+                tagIds.put(tag, id);
+                tagNames.add(tag);
+            }
+            return id;
+        }
+
+        /**
+         * Adds an image with its tags
+         * @param imageId identifier of the image
+         * @param tags tags of the image, duplicates are ignored
+         */
+        public void addImage(String imageId, Collection<String> tags) {
+            int[] ids = new int[tags.size()];
+            int i = 0;
+            for (String tag : tags) {
+                ids[i++] = intern(tag);
+            }
+            addImage(imageId, ids);
+        }
+
+        /**
+         * Adds an image with its already interned tags
+         * @param imageId identifier of the image
+         * @param ids ids of the image tags as returned by intern, duplicates are ignored. The array is kept by the builder.
+         */
+        public void addImage(String imageId, int[] ids) {
+            Integer index = imageIndices.get(imageId);
+            if (index == null) {
+                index = newImage(imageId, ids);
+            } else {
+                imageTags.set(index, ids);
+                replaced = true;
+            }
+            imageSizes[index] = ids.length;
+        }
+
+        /**
+         * Adds a tag to an image, creating the image if it was not added yet
+         * @param imageId identifier of the image
+         * @param tag the tag, duplicates are ignored
+         */
+        public void addTag(String imageId, String tag) {
+            int id = intern(tag);
+            Integer index = imageIndices.get(imageId);
+            if (index == null) {
+                index = newImage(imageId, new int[4]);
+            }
+            int[] ids = imageTags.get(index);
+            int size = imageSizes[index];
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2 + 1);
+                imageTags.set(index, ids);
+            }
+            ids[size] = id;
+            imageSizes[index] = size + 1;
+        }
+
+        private int newImage(String imageId, int[] ids) {
+            int index = imageIds.size();
+            imageIndices.put(imageId, index);
+            imageIds.add(imageId);
+            imageTags.add(ids);
+            if (index == imageSizes.length) {
+                imageSizes = Arrays.copyOf(imageSizes, index * 2);
+            }
+            return index;
+        }
+
+        /**
+         * Adds all the images of another builder in their order, after interning its tags in their order.
+         * Adding the builders of consecutive parts of an input one after another gives the same corpus as one builder for the whole input.
+         * @param other builder of the next part of the input
+         */
+        void addAll(Builder other) {
+            int[] remap = new int[other.tagNames.size()];
+            for (int id = 0; id < remap.length; id++) {
+                remap[id] = intern(other.tagNames.get(id));
+            }
+            for (int i = 0; i < other.imageIds.size(); i++) {
+                int[] ids = other.imageTags.get(i);
+                int[] remapped = new int[other.imageSizes[i]];
+                for (int k = 0; k < remapped.length; k++) {
+                    remapped[k] = remap[ids[k]];
+                }
+                addImage(other.imageIds.get(i), remapped);
+            }
+            replaced |= other.replaced;
+        }
+
+        /**
+         * Same images and tags, reordered as TagCorpus.fromMap orders a HashMap filled with the images of this builder in
+         * their order (as DistancesMT.imageTagsFromFile fills it): images in the iteration order of the map, tags of every
+         * image interned in the order they were added. Tag ids, and so everything that breaks ties by id, are then the
+         * ones of the map based reading.
+         * @return new builder with the reordered images
+         */
+        Builder inMapOrder() {
+            Map<String,Integer> order = new HashMap<>();
+            for (int i = 0; i < imageIds.size(); i++) {
+                order.put(imageIds.get(i), i);
+            }
+
+            Builder builder = new Builder();
+            int[] remap = new int[tagNames.size()];
+            Arrays.fill(remap, -1);
+            for (Map.Entry<String,Integer> image : order.entrySet()) {
+                int i = image.getValue();
+                int[] ids = imageTags.get(i);
+                int[] remapped = new int[imageSizes[i]];
+                for (int k = 0; k < remapped.length; k++) {
+                    if (remap[ids[k]] < 0) {
+                        remap[ids[k]] = builder.intern(tagNames.get(ids[k]));
+                    }
+                    remapped[k] = remap[ids[k]];
+                }
+                builder.addImage(image.getKey(), remapped);
+            }
+            return builder;
+        }
+
+        /**
+         * Same images and tags in an order that does not depend on the order they were added in (e.g. on the order a
+         * database returns its rows): images sorted by id (as strings), tag ids given in the alphabetical order of the tags.
+         * @return new builder with the reordered images
+         */
+        Builder sorted() {
+            boolean[] used = new boolean[tagNames.size()];
+            List<Integer> images = new ArrayList<>();
+            for (int i = 0; i < imageIds.size(); i++) {
+                int[] ids = imageTags.get(i);
+                for (int k = 0; k < imageSizes[i]; k++) {
+                    used[ids[k]] = true;
+                }
+                images.add(i);
+            }
+            List<String> names = new ArrayList<>();
+            for (int id = 0; id < used.length; id++) {
+                if (used[id]) {
+                    names.add(tagNames.get(id));
+                }
+            }
+            Collections.sort(names);
+            Collections.sort(images, (Integer i1, Integer i2) -> imageIds.get(i1).compareTo(imageIds.get(i2)));
+
+            Builder builder = new Builder();
+            for (String name : names) {
+                builder.intern(name);
+            }
+            for (int i : images) {
+                int[] ids = imageTags.get(i);
+                int[] remapped = new int[imageSizes[i]];
+                for (int k = 0; k < remapped.length; k++) {
+                    remapped[k] = builder.intern(tagNames.get(ids[k]));
+                }
+                builder.addImage(imageIds.get(i), remapped);
+            }
+            return builder;
+        }
+
+        /**
+         * @return the corpus containing all added images
+         */
+        public TagCorpus build() {
+
+            /* Tags of replaced images may not be used anymore, keep only used tags (in their original order) */
+            int[] remap = null;
+            String[] names;
+            if (replaced) {
+                boolean[] used = new boolean[tagNames.size()];
+                for (int i = 0; i < imageTags.size(); i++) {
+                    int[] ids = imageTags.get(i);
+                    for (int k = 0; k < imageSizes[i]; k++) {
+                        used[ids[k]] = true;
+                    }
+                }
+                remap = new int[used.length];
+                List<String> usedNames = new ArrayList<>();
+                for (int id = 0; id < used.length; id++) {
+                    remap[id] = used[id] ? usedNames.size() : -1;
+                    if (used[id]) {
+                        usedNames.add(tagNames.get(id));
+                    }
+                }
+                names = usedNames.toArray(new String[usedNames.size()]);
+            } else {
+                names = tagNames.toArray(new String[tagNames.size()]);
+            }
+
+            /* Sort and deduplicate tag ids of every image into the CSR arrays */
+            int[] offsets = new int[imageTags.size() + 1];
+            int total = 0;
+            for (int i = 0; i < imageTags.size(); i++) {
+                total += imageSizes[i];
+            }
+            int[] tags = new int[total];
+            int position = 0;
+            for (int i = 0; i < imageTags.size(); i++) {
+                int[] sorted = Arrays.copyOf(imageTags.get(i), imageSizes[i]);
+                if (remap != null) {
+                    for (int k = 0; k < sorted.length; k++) {
+                        sorted[k] = remap[sorted[k]];
+                    }
+                }
+                Arrays.sort(sorted);
+                offsets[i] = position;
+                for (int k = 0; k < sorted.length; k++) {
+                    if (k == 0 || sorted[k] != sorted[k - 1]) {
+                        tags[position++] = sorted[k];
+                    }
+                }
+            }
+            offsets[imageTags.size()] = position;
+
+            return new TagCorpus(imageIds.toArray(new String[imageIds.size()]), offsets,
+                    Arrays.copyOf(tags, position), new TagDictionary(names));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package statsemdistance;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Bidirectional dictionary between tags and their ids (0 to size-1), i.e. their position in the cooccurrence,
+ * similarity and distance matrixes. Both id => tag and tag => id lookups take constant time.
+ * Build it once per corpus and share it between the LS selection, the statistical and the semantic matrixes.
+ * @author mgarchery
+ */
+public class TagDictionary {
+
+    private final String[] tags;
+    private final Map<String,Integer> ids;
+    private final Map<Integer,String> view = new IdsView();
+
+    /**
+     * @param tags all tags, the id of a tag is its position in the array (tags must be unique)
+     */
+    public TagDictionary(String[] tags) {
+        this.tags = tags;
+        this.ids = new HashMap<>(tags.length * 2);
+        for (int id = 0; id < tags.length; id++) {
+            ids.put(tags[id], id);
+        }
+    }
+
+    /**
+     * Gives an id to every tag of a map of image id => tag list, in the order the tags are first met
+     * @param imagesTags map containing tags for all images
+     * @return the dictionary
+     */
+    public static TagDictionary fromMap(Map imagesTags) {
+        List<String> tags = new ArrayList<>();
+        Map<String,Integer> ids = new HashMap<>();
+
+        Iterator itMap = imagesTags.entrySet().iterator();
+        while (itMap.hasNext()) {
+            Map.Entry pairFromMap = (Map.Entry) itMap.next();
+            for (String s : (Iterable<String>) pairFromMap.getValue()) {
+                if (!ids.containsKey(s)) {
+                    ids.put(s, tags.size());
+                    tags.add(s);
+                }
+            }
+        }
+        return new TagDictionary(tags.toArray(new String[tags.size()]));
+    }
+
+    /**
+     * Returns the dictionary behind a map id => tag, building it if the map is not already a view of a dictionary
+     * @param tagsWithIds map with <key=id,value=tag>, ids from 0 to size-1
+     * @return the dictionary
+     */
+    public static TagDictionary fromIds(Map<Integer,String> tagsWithIds) {
+        if (tagsWithIds instanceof IdsView) {
+            return ((IdsView) tagsWithIds).dictionary();
+        }
+        String[] tags = new String[tagsWithIds.size()];
+        for (Map.Entry<Integer,String> entry : tagsWithIds.entrySet()) {
+            tags[entry.getKey()] = entry.getValue();
+        }
+        return new TagDictionary(tags);
+    }
+
+    /**
+     * @return number of tags
+     */
+    public int size() {
+        return tags.length;
+    }
+
+    /**
+     * @param id tag id
+     * @return the tag with this id
+     */
+    public String tag(int id) {
+        return tags[id];
+    }
+
+    /**
+     * @param tag a tag
+     * @return id of the tag, -1 if unknown
+     */
+    public int id(String tag) {
+        Integer id = ids.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param tag a tag
+     * @return true if the tag has an id
+     */
+    public boolean contains(String tag) {
+        return ids.containsKey(tag);
+    }
+
+    /**
+     * Read only map view id => tag (what LaplacianScore.allTagsWithIds used to build), containsValue is a constant time lookup
+     * @return map with <key=id,value=tag>, iterated by ascending id
+     */
+    public Map<Integer,String> asMap() {
+        return view;
+    }
+
+
+    private class IdsView extends AbstractMap<Integer,String> {
+
+        TagDictionary dictionary() {
+            return TagDictionary.this;
+        }
+
+        @Override
+        public int size() {
+            return tags.length;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (key instanceof Integer) {
+                int id = (Integer) key;
+                if (id >= 0 && id < tags.length) {
+                    return tags[id];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            return ids.containsKey(value);
+        }
+
+        @Override
+        public Set<Map.Entry<Integer,String>> entrySet() {
+            return new AbstractSet<Map.Entry<Integer,String>>() {
+                @Override
+                public int size() {
+                    return tags.length;
+                }
+
+                @Override
+                public Iterator<Map.Entry<Integer,String>> iterator() {
+                    return new Iterator<Map.Entry<Integer,String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < tags.length;
+                        }
+
+                        @Override
+                        public Map.Entry<Integer,String> next() {
+                            if (next >= tags.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int id = next++;
+                            return new AbstractMap.SimpleImmutableEntry<>(id, tags[id]);
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
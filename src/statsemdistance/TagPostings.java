@@ -0,0 +1,224 @@
+package statsemdistance;
+
+/**
+ * Inverted index of a TagCorpus: for every tag, the sorted list of the images tagged with it.
+ * The cooccurrence of two tags is the size of the intersection of their postings lists.
+ * Postings of dense tags are also kept as bitmaps so that they can be intersected with a word-wise AND.
+ * @author mgarchery
+ */
+public class TagPostings {
+
+    /**
+     * Ways to intersect two postings lists
+     */
+    public enum IntersectionStrategy {
+        /** linear merge of both sorted lists, best for lists of similar size */
+        MERGE,
+        /** exponential search of each element of the shorter list in the longer one, best for very different sizes */
+        GALLOPING,
+        /** bitmap AND (or bitmap probing when only one tag is dense), falls back to MERGE for sparse tags */
+        BITMAP,
+        /** choose one of the above for each pair depending on the density of both lists */
+        AUTO
+    }
+
+    public static IntersectionStrategy INTERSECTION_STRATEGY = IntersectionStrategy.AUTO;
+    public static int BITMAP_DENSITY = 32; // tags contained in at least 1 of BITMAP_DENSITY images also get a bitmap
+    public static int GALLOPING_RATIO = 16; // AUTO gallops when one list is at least GALLOPING_RATIO times longer than the other
+
+    private final int imageCount;
+    private final int[] offsets;
+    private final int[] postings;
+    private final long[][] bitmaps;
+
+    /**
+     * Builds the postings lists of all the tags of the corpus in one pass over the images
+     * @param corpus all the images and their corresponding tags
+     */
+    public TagPostings(TagCorpus corpus) {
+        int[] imageOffsets = corpus.offsets();
+        int[] imageTags = corpus.tags();
+        int tagCount = corpus.tagCount();
+        imageCount = corpus.imageCount();
+
+        /* Count images per tag, then turn the counts into list offsets */
+        offsets = new int[tagCount + 1];
+        for (int tag : imageTags) {
+            offsets[tag + 1]++;
+        }
+        for (int tag = 0; tag < tagCount; tag++) {
+            offsets[tag + 1] += offsets[tag];
+        }
+
+        /* Images are visited in order, so every list comes out sorted */
+        postings = new int[imageTags.length];
+        int[] position = new int[tagCount];
+        System.arraycopy(offsets, 0, position, 0, tagCount);
+        for (int image = 0; image < imageCount; image++) {
+            for (int k = imageOffsets[image]; k < imageOffsets[image + 1]; k++) {
+                postings[position[imageTags[k]]++] = image;
+            }
+        }
+
+        bitmaps = new long[tagCount][];
+        for (int tag = 0; tag < tagCount; tag++) {
+            if ((long) frequency(tag) * BITMAP_DENSITY >= imageCount) {
+                long[] bitmap = new long[(imageCount + 63) >>> 6];
+                for (int k = offsets[tag]; k < offsets[tag + 1]; k++) {
+                    bitmap[postings[k] >>> 6] |= 1L << postings[k];
+                }
+                bitmaps[tag] = bitmap;
+            }
+        }
+    }
+
+    /**
+     * @param tag tag id
+     * @return number of images tagged with this tag
+     */
+    public int frequency(int tag) {
+        return offsets[tag + 1] - offsets[tag];
+    }
+
+    /**
+     * @param tag tag id
+     * @return true if the postings of this tag are also stored as a bitmap
+     */
+    public boolean hasBitmap(int tag) {
+        return bitmaps[tag] != null;
+    }
+
+    /**
+     * Counts the images tagged with both tags, using INTERSECTION_STRATEGY
+     * @param tag first tag id
+     * @param tag2 second tag id
+     * @return number of images containing both tags
+     */
+    public int cooccurrence(int tag, int tag2) {
+        return cooccurrence(tag, tag2, INTERSECTION_STRATEGY);
+    }
+
+    /**
+     * Counts the images tagged with both tags
+     * @param tag first tag id
+     * @param tag2 second tag id
+     * @param strategy how to intersect both postings lists
+     * @return number of images containing both tags
+     */
+    public int cooccurrence(int tag, int tag2, IntersectionStrategy strategy) {
+
+        /* a is the shorter list */
+        int a = tag, b = tag2;
+        if (frequency(a) > frequency(b)) {
+            a = tag2;
+            b = tag;
+        }
+        if (frequency(a) == 0) {
+            return 0;
+        }
+
+        switch (strategy) {
+            case MERGE:
+                return merge(a, b);
+            case GALLOPING:
+                return gallop(a, b);
+            case BITMAP:
+                if (bitmaps[a] != null && bitmaps[b] != null) {
+                    return and(a, b);
+                }
+                return bitmaps[b] != null ? probe(a, b) : merge(a, b);
+            default:
+                if (bitmaps[b] != null) {
+                    /* probing costs one lookup per element of a, AND one operation per bitmap word */
+                    if (bitmaps[a] != null && frequency(a) > bitmaps[a].length) {
+                        return and(a, b);
+                    }
+                    return probe(a, b);
+                }
+                if ((long) frequency(a) * GALLOPING_RATIO <= frequency(b)) {
+                    return gallop(a, b);
+                }
+                return merge(a, b);
+        }
+    }
+
+    private int merge(int a, int b) {
+        int i = offsets[a], iEnd = offsets[a + 1];
+        int j = offsets[b], jEnd = offsets[b + 1];
+        int count = 0;
+
+        while (i < iEnd && j < jEnd) {
+            int x = postings[i], y = postings[j];
+            if (x == y) {
+                count++;
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private int gallop(int a, int b) {
+        int j = offsets[b], jEnd = offsets[b + 1];
+        int count = 0;
+
+        for (int i = offsets[a]; i < offsets[a + 1] && j < jEnd; i++) {
+            int x = postings[i];
+
+            /* exponential search for the first element >= x, then binary search in the last step */
+            int step = 1;
+            int low = j;
+            int high = j;
+            while (high < jEnd && postings[high] < x) {
+                low = high + 1;
+                high = j + step;
+                step <<= 1;
+            }
+            if (high > jEnd) {
+                high = jEnd;
+            }
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (postings[middle] < x) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            j = low;
+            if (j < jEnd && postings[j] == x) {
+                count++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private int probe(int a, int b) {
+        long[] bitmap = bitmaps[b];
+        int count = 0;
+
+        for (int i = offsets[a]; i < offsets[a + 1]; i++) {
+            int image = postings[i];
+            if ((bitmap[image >>> 6] & (1L << image)) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int and(int a, int b) {
+        long[] bitmap = bitmaps[a];
+        long[] bitmap2 = bitmaps[b];
+        int count = 0;
+
+        for (int w = 0; w < bitmap.length; w++) {
+            count += Long.bitCount(bitmap[w] & bitmap2[w]);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,114 @@
+package statsemdistance;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import treegenerator.services.Inflector;
+
+/**
+ * Memo cache tag => singular form in front of the Inflector, which is only called the first time a tag is met.
+ * Safe to use from several threads; calls into the Inflector itself are serialized (they only happen on cache misses).
+ * The cache can be kept between runs in a tab separated file, see CACHE_FILE.
+ * @author mgarchery
+ */
+public class TagSingularizer {
+
+    public static String CACHE_FILE = null; // file in the /files folder keeping singular forms between runs, null to disable
+
+    private static final Map<String,String> singulars = new ConcurrentHashMap<>();
+    private static volatile boolean loaded = false;
+    private static volatile int savedSize = 0;
+
+    /**
+     * @param tag a tag
+     * @return its singular form
+     */
+    public static String singularize(String tag) {
+        String singular = singulars.get(tag);
+        if (singular == null) {
+            synchronized (TagSingularizer.class) {
+                singular = singulars.get(tag);
+                if (singular == null) {
+                    singular = Inflector.getInstance().singularize(tag);
+                    singulars.put(tag, singular);
+                }
+            }
+        }
+        return singular;
+    }
+
+    /**
+     * @return number of cached singular forms
+     */
+    public static int size() {
+        return singulars.size();
+    }
+
+    /**
+     * Loads the singular forms stored in CACHE_FILE, once (does nothing if CACHE_FILE is null or does not exist yet)
+     */
+    public static synchronized void loadCache() {
+        if (loaded || CACHE_FILE == null) {
+            return;
+        }
+        loaded = true;
+
+        File file = cacheFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab >= 0) {
+                    singulars.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+            savedSize = singulars.size();
+            if (DistancesMT.PRINT == 1) {
+                System.out.println("Loaded " + savedSize + " singular forms from " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes all cached singular forms to CACHE_FILE, if new ones were found since the last load or save
+     */
+    public static synchronized void saveCache() {
+        if (CACHE_FILE == null || singulars.size() == savedSize) {
+            return;
+        }
+
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(cacheFile()), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String,String> entry : singulars.entrySet()) {
+                /* tags containing line or tab characters cannot be stored in this format */
+                if (storable(entry.getKey()) && storable(entry.getValue())) {
+                    writer.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+                }
+            }
+            savedSize = singulars.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean storable(String tag) {
+        return tag.indexOf('\t') < 0 && tag.indexOf('\n') < 0 && tag.indexOf('\r') < 0;
+    }
+
+    private static File cacheFile() {
+        return new File(System.getProperty("user.dir") + "/files/" + CACHE_FILE);
+    }
+}
@@ -0,0 +1,98 @@
+package statsemdistance;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API (jdk.incubator.vector) implementations of the Kernels loops, on the preferred vector size of the CPU.
+ * Only loaded by Kernels once it made sure that the module is there: use Kernels, never this class directly.
+ * Lanes are summed separately and reduced at the end, so sums can differ from the scalar ones in the last bits.
+ * @author mgarchery
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return number of doubles processed at once
+     */
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    static void axpy(double a, double[] x, int xFrom, double[] y, int yFrom, int length) {
+        DoubleVector factor = DoubleVector.broadcast(SPECIES, a);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector xs = DoubleVector.fromArray(SPECIES, x, xFrom + i);
+            DoubleVector.fromArray(SPECIES, y, yFrom + i).add(xs.mul(factor)).intoArray(y, yFrom + i);
+        }
+        for (; i < length; i++) {
+            y[yFrom + i] += a * x[xFrom + i];
+        }
+    }
+
+    static double klDivergence(double[] p1, double[] p2) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(p1.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector a = DoubleVector.fromArray(SPECIES, p1, i);
+            DoubleVector b = DoubleVector.fromArray(SPECIES, p2, i);
+            /* lanes where p1 or p2 is 0 are skipped, like in the scalar loop */
+            VectorMask<Double> defined = a.compare(VectorOperators.NE, 0).and(b.compare(VectorOperators.NE, 0));
+            if (defined.anyTrue()) {
+                DoubleVector terms = a.mul(a.div(b).lanewise(VectorOperators.LOG));
+                sum = sum.add(terms, defined);
+            }
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < p1.length; i++) {
+            if (p1[i] == 0 || p2[i] == 0) {
+                continue;
+            }
+            result += p1[i] * Math.log(p1[i] / p2[i]);
+        }
+        return result;
+    }
+
+    static double jensenShannonDivergence(double[] p1, double[] p2) {
+        DoubleVector sum1 = DoubleVector.zero(SPECIES);
+        DoubleVector sum2 = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(p1.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector a = DoubleVector.fromArray(SPECIES, p1, i);
+            DoubleVector b = DoubleVector.fromArray(SPECIES, p2, i);
+            DoubleVector m = a.add(b).mul(0.5);
+            VectorMask<Double> defined = m.compare(VectorOperators.NE, 0);
+            if (defined.anyTrue()) {
+                VectorMask<Double> defined1 = defined.and(a.compare(VectorOperators.NE, 0));
+                VectorMask<Double> defined2 = defined.and(b.compare(VectorOperators.NE, 0));
+                sum1 = sum1.add(a.mul(a.div(m).lanewise(VectorOperators.LOG)), defined1);
+                sum2 = sum2.add(b.mul(b.div(m).lanewise(VectorOperators.LOG)), defined2);
+            }
+        }
+        double kl1 = sum1.reduceLanes(VectorOperators.ADD);
+        double kl2 = sum2.reduceLanes(VectorOperators.ADD);
+        for (; i < p1.length; i++) {
+            double m = (p1[i] + p2[i]) / 2;
+            if (m == 0.0) {
+                continue;
+            }
+            if (p1[i] != 0) {
+                kl1 += p1[i] * Math.log(p1[i] / m);
+            }
+            if (p2[i] != 0) {
+                kl2 += p2[i] * Math.log(p2[i] / m);
+            }
+        }
+        return (kl1 / JensonShanonDivergence.log2 + kl2 / JensonShanonDivergence.log2) / 2;
+    }
+}